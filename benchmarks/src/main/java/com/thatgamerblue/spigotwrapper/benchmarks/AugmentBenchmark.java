@@ -0,0 +1,85 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.benchmarks;
+
+import com.thatgamerblue.spigotwrapper.instrumentation.AugmentationEngine;
+import com.thatgamerblue.spigotwrapper.instrumentation.ClassCache;
+import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full rebuild of the augmented jar with a cold class cache: read, transform, deflate and write.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AugmentBenchmark
+{
+	@Param({ "8" })
+	public int pluginCount;
+	@Param({ "1", "4" })
+	public int threads;
+	@Param({ "heap", "offheap", "file" })
+	public String entryStore;
+
+	private PluginManager pluginManager;
+	private File destination;
+
+	@Setup(Level.Trial)
+	public void setUp(final ServerJarState state) throws IOException
+	{
+		this.pluginManager = SyntheticPlugins.create(state.serverJar, this.pluginCount);
+		this.destination = File.createTempFile("augmented-", ".jar");
+		this.destination.deleteOnExit();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		this.pluginManager.close();
+		this.destination.delete();
+	}
+
+	@Benchmark
+	public long augment(final ServerJarState state) throws IOException, InterruptedException
+	{
+		// a previous jar that doesn't exist means nothing can be reused
+		final ClassCache classCache = ClassCache.load(new File(this.destination.getPath() + ".missing"));
+		new AugmentationEngine(this.pluginManager, this.threads, classCache, this.entryStore)
+			.augment(state.serverJar, this.destination);
+		return this.destination.length();
+	}
+}
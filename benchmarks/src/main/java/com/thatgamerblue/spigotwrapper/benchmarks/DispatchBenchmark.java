@@ -0,0 +1,91 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.benchmarks;
+
+import com.thatgamerblue.spigotwrapper.instrumentation.ZipArchive;
+import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every class of the jar through {@link PluginManager#onClassLoaded(byte[], String)}, single threaded and with
+ * the bytes already in memory, so only plugin dispatch and ASM work is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark
+{
+	@Param({ "1", "8", "32" })
+	public int pluginCount;
+
+	private PluginManager pluginManager;
+	private final List<String> classNames = new ArrayList<>();
+	private final List<byte[]> classBytes = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setUp(final ServerJarState state) throws IOException
+	{
+		this.pluginManager = SyntheticPlugins.create(state.serverJar, this.pluginCount);
+		try (final ZipArchive archive = new ZipArchive(state.file))
+		{
+			for (final ZipArchive.Entry entry : archive.getEntries())
+			{
+				if (entry.getName().endsWith(".class"))
+				{
+					this.classNames.add(entry.getName().substring(0, entry.getName().length() - 6).replace('/', '.'));
+					this.classBytes.add(archive.readBytes(entry));
+				}
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		this.pluginManager.close();
+	}
+
+	@Benchmark
+	public void onClassLoaded(final Blackhole blackhole)
+	{
+		for (int i = 0; i < this.classNames.size(); i++)
+		{
+			blackhole.consume(this.pluginManager.onClassLoaded(this.classBytes.get(i), this.classNames.get(i)));
+		}
+	}
+}
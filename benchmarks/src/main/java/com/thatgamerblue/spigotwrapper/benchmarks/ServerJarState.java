@@ -0,0 +1,50 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.benchmarks;
+
+import com.thatgamerblue.spigotwrapper.instrumentation.ServerJar;
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A synthetic server jar shared by the benchmarks. 6000 classes is about the size of a 1.15 Spigot jar.
+ */
+@State(Scope.Benchmark)
+public class ServerJarState
+{
+	@Param({ "1000", "6000" })
+	public int classCount;
+
+	public File file;
+	public ServerJar serverJar;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		Globals.getOptions().setLoggingLevel(Logger.LEVEL_WARN);
+		this.file = SyntheticJar.create(this.classCount, 0x5EED);
+		this.serverJar = new ServerJar.Loader().zipFile(this.file).load();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.benchmarks;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a jar shaped like a Spigot server jar (version.json, a Main-Class, thousands of classes spread over the
+ * server, craftbukkit and library packages, and incompressible assets) so benchmarks don't need a real Spigot build.
+ * The contents only depend on the class count and seed.
+ */
+public class SyntheticJar implements Opcodes
+{
+	public static final String SERVER_PACKAGE_NAME = "net.minecraft.server.v1_15_R1";
+	private static final String SERVER_PACKAGE = SERVER_PACKAGE_NAME.replace('.', '/') + "/";
+	private static final String[] PACKAGES = { SERVER_PACKAGE, SERVER_PACKAGE, SERVER_PACKAGE,
+		"org/bukkit/craftbukkit/v1_15_R1/", "com/google/common/collect/", "it/unimi/dsi/fastutil/ints/" };
+	private static final int FIELDS = 8;
+	private static final int METHODS = 12;
+
+	public static File create(final int classCount, final long seed) throws IOException
+	{
+		final File file = File.createTempFile("synthetic-server-" + classCount + "-", ".jar");
+		file.deleteOnExit();
+		write(file, classCount, seed);
+		return file;
+	}
+
+	public static void write(final File file, final int classCount, final long seed) throws IOException
+	{
+		final Random random = new Random(seed);
+		final Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "org.bukkit.craftbukkit.Main");
+		try (final JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest))
+		{
+			out.putNextEntry(new ZipEntry("version.json"));
+			out.write("{\"id\": \"1.15.2\", \"name\": \"1.15.2\"}".getBytes(StandardCharsets.UTF_8));
+			for (int i = 0; i < classCount; i++)
+			{
+				final String name = getClassName(i);
+				out.putNextEntry(new ZipEntry(name + ".class"));
+				out.write(generateClass(name, i));
+			}
+			// roughly one asset per ten classes, like the vanilla data and lang files
+			final byte[] asset = new byte[4096];
+			for (int i = 0; i < classCount / 10; i++)
+			{
+				random.nextBytes(asset);
+				out.putNextEntry(new ZipEntry("assets/minecraft/synthetic/" + i + ".bin"));
+				out.write(asset);
+			}
+		}
+	}
+
+	public static String getClassName(final int index)
+	{
+		return PACKAGES[index % PACKAGES.length] + "Synthetic" + index;
+	}
+
+	private static byte[] generateClass(final String name, final int index)
+	{
+		// every third class extends the class of the same package before it, so frame computation has a hierarchy
+		final String superName = index >= PACKAGES.length && index % 3 == 0 ? getClassName(index - PACKAGES.length)
+			: "java/lang/Object";
+		final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name, null, superName, null);
+		for (int f = 0; f < FIELDS; f++)
+		{
+			cw.visitField(ACC_PRIVATE, "field" + f, f % 2 == 0 ? "I" : "Ljava/lang/String;", null, null).visitEnd();
+		}
+		final MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(ALOAD, 0);
+		init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+		init.visitInsn(RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+		for (int m = 0; m < METHODS; m++)
+		{
+			final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "method" + m, "(ILjava/lang/String;)I", null, null);
+			mv.visitCode();
+			mv.visitLdcInsn("synthetic." + index + "." + m);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+			mv.visitVarInsn(ALOAD, 2);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "hashCode", "()I", false);
+			mv.visitInsn(IADD);
+			mv.visitVarInsn(ILOAD, 1);
+			mv.visitInsn(IMUL);
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, name, "field" + (m % FIELDS / 2 * 2), "I");
+			mv.visitInsn(IXOR);
+			mv.visitInsn(IRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.benchmarks;
+
+import com.thatgamerblue.spigotwrapper.instrumentation.ServerJar;
+import com.thatgamerblue.spigotwrapper.plugins.ClassNodePlugin;
+import com.thatgamerblue.spigotwrapper.plugins.Plugin;
+import com.thatgamerblue.spigotwrapper.plugins.PluginDependencies;
+import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import com.thatgamerblue.spigotwrapper.plugins.PluginManifest;
+import com.thatgamerblue.spigotwrapper.plugins.PluginTargets;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+
+import java.util.Collections;
+
+/**
+ * Builds a PluginManager with synthetic plugins instead of jars from wrapper-plugins. Plugins alternate between
+ * tree plugins that add a field to every server class and byte[] plugins that only look at the bytes, and every
+ * fourth plugin is untargeted like a plugin without "targets" in its manifest.
+ */
+public class SyntheticPlugins
+{
+	public static PluginManager create(final ServerJar serverJar, final int pluginCount)
+	{
+		final PluginManager pluginManager = new PluginManager(serverJar);
+		for (int i = 0; i < pluginCount; i++)
+		{
+			final PluginTargets targets = i % 4 == 3 ? PluginTargets.ALL
+				: new PluginTargets(Collections.emptyList(), Collections.singletonList(SyntheticJar.SERVER_PACKAGE_NAME),
+				Collections.emptyList(), Collections.emptyList());
+			final Plugin plugin = i % 2 == 0 ? new FieldAddingPlugin(i) : new InspectingPlugin();
+			final PluginManifest manifest = new PluginManifest("synthetic-" + i, "1.0", "benchmarks",
+				plugin.getClass().getName(), true, targets, PluginDependencies.NONE);
+			pluginManager.registerPlugin(plugin, manifest, "synthetic");
+		}
+		return pluginManager;
+	}
+
+	private static class FieldAddingPlugin extends ClassNodePlugin
+	{
+		private final String fieldName;
+
+		private FieldAddingPlugin(final int index)
+		{
+			this.fieldName = "synthetic$" + index;
+		}
+
+		@Override
+		public void init()
+		{
+		}
+
+		@Override
+		public int transform(final ClassNode classNode, final String className)
+		{
+			if ((classNode.access & Opcodes.ACC_INTERFACE) != 0)
+			{
+				return UNCHANGED;
+			}
+			classNode.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, this.fieldName, "J", null, null));
+			return CHANGED;
+		}
+	}
+
+	private static class InspectingPlugin extends Plugin
+	{
+		@Override
+		public void init()
+		{
+		}
+
+		@Override
+		public byte[] onClassLoaded(final byte[] bytes, final String className)
+		{
+			// reads the magic number like a plugin checking the class version would, and leaves the class alone
+			return bytes.length > 4 && bytes[0] == (byte) 0xCA ? bytes : bytes.clone();
+		}
+	}
+}
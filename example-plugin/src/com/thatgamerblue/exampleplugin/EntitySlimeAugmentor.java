@@ -17,9 +17,8 @@
 
 package com.thatgamerblue.exampleplugin;
 
+import com.thatgamerblue.spigotwrapper.plugins.ClassNodePlugin;
 import com.thatgamerblue.spigotwrapper.util.Globals;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
@@ -33,26 +32,19 @@ import java.util.Iterator;
 
 public class EntitySlimeAugmentor implements Opcodes
 {
-	private final byte[] bytes;
+	private final ClassNode cn;
 	private final String fullClassName;
-	private ClassReader cr;
-	private ClassWriter cw;
 
-	public EntitySlimeAugmentor(byte[] bytes, String fullClassName) {
-		this.bytes = bytes;
+	public EntitySlimeAugmentor(ClassNode cn, String fullClassName) {
+		this.cn = cn;
 		this.fullClassName = fullClassName;
 	}
 
-	protected byte[] run() {
+	protected int run() {
 		Globals.getLogger().info("Instrumenting %s", this.fullClassName);
-		this.cr = new ClassReader(this.bytes);
-		this.cw = new ClassWriter(this.cr, 3);
-
-		ClassNode cn = new ClassNode(ASM7);
-		this.cr.accept(cn, 8);
 		MethodNode targetMethod = null;
 		int foundMethods = 0;
-		Iterator var4 = cn.methods.iterator();
+		Iterator var4 = this.cn.methods.iterator();
 
 		while(var4.hasNext()) {
 			MethodNode methodNode = (MethodNode)var4.next();
@@ -64,10 +56,10 @@ public class EntitySlimeAugmentor implements Opcodes
 
 		if (foundMethods > 1) {
 			Globals.getLogger().fatal("Got more than 1 candidate for checkSlimeSpawnRules", new Object[0]);
-			return this.bytes;
+			return ClassNodePlugin.UNCHANGED;
 		} else if (targetMethod == null) {
 			Globals.getLogger().fatal("Got no candidates for checkSlimeSpawnRules", new Object[0]);
-			return this.bytes;
+			return ClassNodePlugin.UNCHANGED;
 		} else {
 			for(int i = 0; i < targetMethod.instructions.size(); ++i) {
 				AbstractInsnNode abstractInsnNode = targetMethod.instructions.get(i);
@@ -78,13 +70,12 @@ public class EntitySlimeAugmentor implements Opcodes
 					if (varInsnNode.getOpcode() == 25 && intInsnNode.operand == 8 && methodInsnNode.name.equals("nextInt") && methodInsnNode.owner.contains("Random")) {
 						targetMethod.instructions.remove(varInsnNode);
 						targetMethod.instructions.remove(methodInsnNode);
-						break;
+						return ClassNodePlugin.CHANGED;
 					}
 				}
 			}
 
-			cn.accept(this.cw);
-			return this.cw.toByteArray();
+			return ClassNodePlugin.UNCHANGED;
 		}
 	}
 }
@@ -16,27 +16,28 @@
  */
 package com.thatgamerblue.exampleplugin;
 
-import com.thatgamerblue.spigotwrapper.plugins.Plugin;
+import com.thatgamerblue.spigotwrapper.plugins.ClassNodePlugin;
 import com.thatgamerblue.spigotwrapper.util.Globals;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
 
-public class Main extends Plugin implements Opcodes
+public class Main extends ClassNodePlugin implements Opcodes
 {
 	public void init()
 	{
 		Globals.getLogger().info("Hello from example!");
 	}
 
-	public byte[] onClassLoaded(byte[] bytes, String fullClassName)
+	public int transform(ClassNode classNode, String fullClassName)
 	{
 		if (fullClassName.startsWith("net.minecraft.server"))
 		{
 			if (fullClassName.endsWith("EntitySlime"))
 			{
-				return (new EntitySlimeAugmentor(bytes, fullClassName)).run();
+				return (new EntitySlimeAugmentor(classNode, fullClassName)).run();
 			}
 		}
 
-		return bytes;
+		return UNCHANGED;
 	}
 }
@@ -0,0 +1,71 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper;
+
+import com.thatgamerblue.spigotwrapper.instrumentation.AugmentingTransformer;
+import com.thatgamerblue.spigotwrapper.instrumentation.ServerJar;
+import com.thatgamerblue.spigotwrapper.instrumentation.ZipArchive;
+import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import lombok.SneakyThrows;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Entry point when the wrapper jar is attached to the server with -javaagent. The agent arguments are
+ * {@code <logging level>:<server jar path>}, as built by {@link #getAgentArgument(File)}.
+ */
+public class Agent
+{
+	@SneakyThrows
+	public static void premain(final String agentArgs, final Instrumentation instrumentation)
+	{
+		final int separator = agentArgs.indexOf(':');
+		Globals.getOptions().setLoggingLevel(Integer.parseInt(agentArgs.substring(0, separator)));
+		Globals.getOptions().setSpigotPath(agentArgs.substring(separator + 1));
+		final File serverFile = new File(Globals.getOptions().getSpigotPath());
+		final ServerJar serverJar = new ServerJar.Loader().zipFile(serverFile).load();
+		final PluginManager pluginManager = new PluginManager(serverJar);
+		pluginManager.init(true);
+		pluginManager.loadAllPlugins();
+		try (final ZipArchive archive = new ZipArchive(serverFile))
+		{
+			instrumentation.addTransformer(new AugmentingTransformer(pluginManager, archive));
+		}
+		Globals.getLogger().info("Augmenting classes as they are loaded");
+	}
+
+	public static String getAgentArgument(final File serverJar)
+	{
+		final File wrapperJar = getWrapperJar();
+		if (wrapperJar == null)
+		{
+			return null;
+		}
+		return "-javaagent:" + wrapperJar.getAbsolutePath() + "=" + Globals.getOptions().getLoggingLevel() + ":"
+			+ serverJar.getAbsolutePath();
+	}
+
+	@SneakyThrows
+	private static File getWrapperJar()
+	{
+		final File location = new File(Agent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		return location.isFile() ? location : null;
+	}
+}
@@ -19,17 +19,29 @@ package com.thatgamerblue.spigotwrapper;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Strings;
+import com.thatgamerblue.spigotwrapper.console.ConsoleEvent;
+import com.thatgamerblue.spigotwrapper.instrumentation.AugmentationEngine;
+import com.thatgamerblue.spigotwrapper.instrumentation.ClassCache;
 import com.thatgamerblue.spigotwrapper.instrumentation.ServerJar;
+import com.thatgamerblue.spigotwrapper.instrumentation.SharedCache;
 import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import com.thatgamerblue.spigotwrapper.util.ClassDataSharing;
 import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.HeapPolicy;
 import com.thatgamerblue.spigotwrapper.util.Logger;
+import com.thatgamerblue.spigotwrapper.util.Utils;
 import lombok.SneakyThrows;
 import org.fusesource.jansi.AnsiConsole;
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
+import java.util.jar.Attributes;
 import java.util.stream.Collectors;
 
 public class Main
@@ -79,45 +91,144 @@ public class Main
 					Globals.getOptions().getLoggingLevel());
 			Globals.getOptions().setLoggingLevel(2);
 		}
+		Globals.getLogger().flush();
 		System.out.printf("[INFO com.thatgamerblue.spigotwrapper.Main] Logging level: %s%n", Logger
 			.getLogLevelString(Globals.getOptions().getLoggingLevel()));
-		final ServerJar jarFile = new ServerJar.Loader().zipFile(new File(Globals.getOptions().getSpigotPath())).load();
-		final PluginManager pluginManager = new PluginManager();
-		pluginManager.init(true);
+		if (Globals.getOptions().isAgent() && Globals.getOptions().isInProcess())
+		{
+			Globals.getLogger().fatal("--agent and --in-process can't be used together");
+			System.exit(-1);
+		}
+		if (Globals.getOptions().isSupervise() && Globals.getOptions().isInProcess())
+		{
+			Globals.getLogger().fatal("--supervise can't restart a server running in-process");
+			System.exit(-1);
+		}
+		ServerJar jarFile = new ServerJar.Loader().zipFile(new File(Globals.getOptions().getSpigotPath())).load();
 		final File cacheDir = new File("cache/");
 		cacheDir.mkdirs();
-		final File finalJar = new File(cacheDir, "augmented-spigot.jar");
-		if (!pluginManager.validatePluginCache(finalJar))
+		final File finalJar;
+		final String agentArgument;
+		if (Globals.getOptions().isAgent())
 		{
-			Globals.getLogger().info("Augmenting classes");
-			for (final Map.Entry<String, byte[]> stringEntry : jarFile.getJarContents().entrySet())
+			// plugins are loaded by the agent inside the server process
+			agentArgument = Agent.getAgentArgument(jarFile.getFile());
+			if (agentArgument == null)
 			{
-				if (stringEntry.getKey().endsWith(".class"))
-				{
-					String className = stringEntry.getKey().replace("/", ".");
-					className = className.substring(0, className.length() - 6);
-					stringEntry.setValue(pluginManager.onClassLoaded(stringEntry.getValue(), className));
-				}
+				Globals.getLogger().fatal("Agent mode requires running the wrapper from its jar file");
+				System.exit(-1);
 			}
-			jarFile.createZipFile(finalJar);
+			finalJar = jarFile.getFile();
 		}
 		else
 		{
-			Globals.getLogger().info("Using cached augmented jar");
+			agentArgument = null;
+			finalJar = new File(cacheDir, "augmented-spigot.jar");
+			augmentIfNeeded(jarFile, cacheDir, finalJar);
+		}
+		if (Globals.getOptions().isInProcess())
+		{
+			final String mainClass = jarFile.getManifest() == null ? null
+				: jarFile.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+			if (mainClass == null)
+			{
+				Globals.getLogger().fatal("%s has no Main-Class, can't run it in-process", jarFile.getFile().getName());
+				System.exit(-1);
+			}
+			// drop everything the wrapper used to augment the jar so the server starts with a clean heap
+			jarFile = null;
+			launchInProcess(finalJar, mainClass, hasNogui);
+			return;
 		}
-		final long reservedRam = 0x8000000L;
-		final long newProcessRam = Runtime.getRuntime().maxMemory() - reservedRam;
 		if (Globals.getOptions().getJvmArguments().size() == 0)
 		{
+			// the wrapper's own heap flags were sized for the wrapper, the heap policy decides the server's
+			final boolean passthrough = Globals.getOptions().getHeapPolicy().equalsIgnoreCase("passthrough");
 			Globals.getOptions().setJvmArguments(ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
 				.filter(s -> !s.startsWith("-javaagent:"))
+				.filter(s -> passthrough || !HeapPolicy.isHeapArgument(s))
 				.collect(Collectors.toList()));
 		}
+		ClassDataSharing classDataSharing = null;
+		if (Globals.getOptions().isClassDataSharing())
+		{
+			if (Globals.getOptions().isAgent())
+			{
+				Globals.getLogger().warn("Class data sharing isn't used in agent mode, classes are transformed at load time");
+			}
+			else
+			{
+				classDataSharing = new ClassDataSharing(new File(cacheDir, "augmented-spigot.jsa"), finalJar);
+			}
+		}
+		final ClassDataSharing serverClassDataSharing = classDataSharing;
+		if (Globals.getOptions().isSupervise())
+		{
+			final ServerJar serverJar = jarFile;
+			final boolean serverNogui = hasNogui;
+			final int exitValue = new Supervisor(Globals.getOptions()).run(new Supervisor.Launcher()
+			{
+				@Override
+				public ServerProcess start(final Consumer<ConsoleEvent> listener) throws Exception
+				{
+					if (agentArgument == null && !finalJar.exists())
+					{
+						// only after onExit threw the jar away, restarts otherwise go straight to the new JVM
+						augmentIfNeeded(serverJar, cacheDir, finalJar);
+					}
+					return ServerProcess.start(
+						buildCommand(finalJar, agentArgument, serverClassDataSharing, serverNogui), listener);
+				}
+
+				@Override
+				public void onExit(final int exitValue, final boolean augmentationFailure)
+				{
+					if (serverClassDataSharing != null && exitValue == 0)
+					{
+						serverClassDataSharing.onServerExit();
+					}
+					if (augmentationFailure && agentArgument == null)
+					{
+						Globals.getLogger().warn("Server crashed with a linkage or verify error, discarding the augmented jar");
+						finalJar.delete();
+						evictSharedJar();
+					}
+				}
+			});
+			AnsiConsole.systemUninstall();
+			System.exit(exitValue);
+		}
+		final ServerProcess server =
+			ServerProcess.start(buildCommand(finalJar, agentArgument, classDataSharing, hasNogui), null);
+		final int exitValue = server.waitFor();
+		AnsiConsole.systemUninstall();
+		if (classDataSharing != null && exitValue == 0)
+		{
+			classDataSharing.onServerExit();
+		}
+		if (exitValue != 0 && !Globals.getOptions().isAgent())
+		{
+			finalJar.delete();
+		}
+		System.exit(exitValue);
+	}
+
+	private static List<String> buildCommand(final File finalJar, final String agentArgument,
+		final ClassDataSharing classDataSharing, final boolean hasNogui)
+	{
 		final List<String> newProcessArgs = new ArrayList<>();
 		newProcessArgs.add("java");
-		newProcessArgs.add("-Xms" + newProcessRam);
-		newProcessArgs.add("-Xmx" + newProcessRam);
+		newProcessArgs.addAll(HeapPolicy.getJvmArguments(Globals.getOptions().getJvmArguments()));
 		newProcessArgs.addAll(Globals.getOptions().getJvmArguments());
+		if (agentArgument != null)
+		{
+			newProcessArgs.add(agentArgument);
+		}
+		if (classDataSharing != null)
+		{
+			newProcessArgs.addAll(classDataSharing.getJvmArguments("java",
+				new ArrayList<>(newProcessArgs.subList(1, newProcessArgs.size()))));
+		}
 		newProcessArgs.add("-jar");
 		newProcessArgs.add(finalJar.getAbsolutePath());
 		newProcessArgs.addAll(Globals.getOptions().getSpigotArguments());
@@ -125,24 +236,113 @@ public class Main
 		{
 			newProcessArgs.add("nogui");
 		}
-		Globals.getLogger().debug("Running command: %s", Strings.join(" ", newProcessArgs));
+		return newProcessArgs;
+	}
+
+	private static void launchInProcess(final File finalJar, final String mainClass, final boolean hasNogui)
+		throws Exception
+	{
+		if (!Globals.getOptions().getJvmArguments().isEmpty())
+		{
+			Globals.getLogger().warn("JVM arguments are ignored when running in-process");
+		}
+		if (Globals.getOptions().isCaptureConsole())
+		{
+			Globals.getLogger().warn("--capture-console is ignored when running in-process");
+		}
+		final List<String> serverArgs = new ArrayList<>(Globals.getOptions().getSpigotArguments());
+		if (hasNogui)
+		{
+			serverArgs.add("nogui");
+		}
+		// the server gets its own loader on top of the JDK classes, so the wrapper's libraries can't clash with its own
+		final URLClassLoader serverClassLoader = new URLClassLoader(new URL[] { finalJar.toURI().toURL() },
+			ClassLoader.getSystemClassLoader().getParent());
+		final Method mainMethod = serverClassLoader.loadClass(mainClass).getMethod("main", String[].class);
+		System.gc();
+		Globals.getLogger().debug("Running %s in-process with arguments: %s", mainClass, Strings.join(" ", serverArgs));
+		Globals.getLogger().flush();
 		System.out.printf("%n-------- SPIGOT START --------%n%n");
-		final ProcessBuilder pb = new ProcessBuilder(newProcessArgs).inheritIO();
-		final Process proc = pb.start();
-		proc.waitFor();
 		AnsiConsole.systemUninstall();
-		final int exitValue = proc.exitValue();
-		if (exitValue != 0)
+		Thread.currentThread().setContextClassLoader(serverClassLoader);
+		mainMethod.invoke(null, (Object) serverArgs.toArray(new String[0]));
+	}
+
+	private static void augmentIfNeeded(final ServerJar jarFile, final File cacheDir, final File finalJar)
+		throws IOException, InterruptedException
+	{
+		try (final PluginManager pluginManager = new PluginManager(jarFile))
 		{
-			finalJar.delete();
+			pluginManager.init(true);
+			if (pluginManager.validatePluginCache(finalJar))
+			{
+				Globals.getLogger().info("Using cached augmented jar");
+				return;
+			}
+			if (Globals.getOptions().getSharedCache() == null)
+			{
+				augment(pluginManager, jarFile, cacheDir, finalJar);
+				return;
+			}
+			final SharedCache sharedCache = new SharedCache(new File(Globals.getOptions().getSharedCache()));
+			final String hash = Utils.hashPluginsAndServer();
+			try (final SharedCache.Lock lock = sharedCache.lock(hash))
+			{
+				if (lock.linkInto(finalJar))
+				{
+					pluginManager.updatePluginCacheHash();
+					Globals.getLogger().info("Using shared augmented jar %s", hash);
+					return;
+				}
+				augment(pluginManager, jarFile, cacheDir, finalJar);
+				lock.publish(finalJar);
+			}
+		}
+	}
+
+	/**
+	 * Removes a jar that crashed the server from the shared cache, otherwise the rebuild would just link it again
+	 */
+	private static void evictSharedJar()
+	{
+		if (Globals.getOptions().getSharedCache() == null)
+		{
+			return;
 		}
-		System.exit(proc.exitValue());
+		final SharedCache sharedCache = new SharedCache(new File(Globals.getOptions().getSharedCache()));
+		try
+		{
+			final String hash = Utils.hashPluginsAndServer();
+			try (final SharedCache.Lock lock = sharedCache.lock(hash))
+			{
+				lock.evict();
+			}
+			Globals.getLogger().warn("Removed shared augmented jar %s", hash);
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to remove the shared augmented jar%n%s", Logger.exceptionToString(ex));
+		}
+	}
+
+	private static void augment(final PluginManager pluginManager, final ServerJar jarFile, final File cacheDir,
+		final File finalJar) throws IOException, InterruptedException
+	{
+		Globals.getLogger().info("Augmenting classes");
+		final ClassCache classCache = ClassCache.load(finalJar);
+		final File builtJar = new File(cacheDir, "augmented-spigot.jar.tmp");
+		new AugmentationEngine(pluginManager, Globals.getOptions().getThreads(), classCache,
+			Globals.getOptions().getEntryStore()).augment(jarFile, builtJar);
+		classCache.commit(builtJar, finalJar);
+		pluginManager.updatePluginCacheHash();
+		Globals.getLogger().info("Done!");
 	}
 
 	private static void printUsage(final int exitCode)
 	{
 		final StringBuilder sb = new StringBuilder();
 		Main.optionParser.getUsageFormatter().usage(sb);
+		Globals.getLogger().flush();
 		System.out.println(sb.toString());
 		if (exitCode != 1337)
 		{
@@ -0,0 +1,109 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper;
+
+import com.beust.jcommander.Strings;
+import com.thatgamerblue.spigotwrapper.console.ConsoleEvent;
+import com.thatgamerblue.spigotwrapper.console.ConsoleLog;
+import com.thatgamerblue.spigotwrapper.console.ConsolePump;
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A running server JVM. Its output is inherited, unless it's being captured or somebody wants to watch it, in which
+ * case it goes through a {@link ConsolePump}.
+ */
+public class ServerProcess
+{
+	@Getter
+	private final Process process;
+	private final ConsolePump consolePump;
+
+	private ServerProcess(final Process process, final ConsolePump consolePump)
+	{
+		this.process = process;
+		this.consolePump = consolePump;
+	}
+
+	/**
+	 * @param listener sees every line the server prints, or null
+	 */
+	public static ServerProcess start(final List<String> command, final Consumer<ConsoleEvent> listener)
+		throws IOException
+	{
+		Globals.getLogger().debug("Running command: %s", Strings.join(" ", command));
+		final ProcessBuilder pb = new ProcessBuilder(command);
+		ConsolePump consolePump = null;
+		if (Globals.getOptions().isCaptureConsole() || listener != null)
+		{
+			pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+			consolePump = new ConsolePump(!Globals.getOptions().isCaptureConsole() ? null
+				: new ConsoleLog(new File(Globals.getOptions().getConsoleLogDirectory()),
+				Globals.getOptions().getConsoleLogSize() * 1024L * 1024L, Globals.getOptions().getConsoleLogKeep()));
+			if (listener != null)
+			{
+				consolePump.addListener(listener);
+			}
+		}
+		else
+		{
+			pb.inheritIO();
+		}
+		Globals.getLogger().flush();
+		System.out.printf("%n-------- SPIGOT START --------%n%n");
+		final Process process = pb.start();
+		if (consolePump != null)
+		{
+			consolePump.start(process);
+		}
+		return new ServerProcess(process, consolePump);
+	}
+
+	/**
+	 * Waits for the server to exit and for its output to be written out
+	 *
+	 * @return the exit code
+	 */
+	public int waitFor() throws InterruptedException, IOException
+	{
+		final int exitValue = this.process.waitFor();
+		if (this.consolePump != null)
+		{
+			this.consolePump.close();
+		}
+		return exitValue;
+	}
+
+	/**
+	 * Asks the server to shut down, which runs its own shutdown hooks and saves the worlds
+	 */
+	public void stop(final long timeout, final TimeUnit unit) throws InterruptedException
+	{
+		this.process.destroy();
+		if (!this.process.waitFor(timeout, unit))
+		{
+			Globals.getLogger().warn("Server didn't stop within %d seconds, killing it", unit.toSeconds(timeout));
+			this.process.destroyForcibly();
+		}
+	}
+}
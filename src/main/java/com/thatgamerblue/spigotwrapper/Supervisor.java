@@ -0,0 +1,188 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper;
+
+import com.thatgamerblue.spigotwrapper.console.ConsoleEvent;
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import com.thatgamerblue.spigotwrapper.util.Options;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the server running: restarts it after a crash with an exponential backoff, and gives up when it crashes too
+ * often in a short time. The server's output is watched for linkage and verification errors, which are the only
+ * crashes blamed on the augmented jar, and only when one is the last stack trace before the server died. Plugins built
+ * against another API version log these all the time without taking the server down. A clean exit (code 0, e.g.
+ * /stop) ends supervision.
+ */
+public class Supervisor
+{
+	private static final Pattern AUGMENTATION_ERROR = Pattern.compile(
+		"java\\.lang\\.(VerifyError|ClassFormatError|IncompatibleClassChangeError|NoSuchMethodError|NoSuchFieldError"
+			+ "|AbstractMethodError|ClassCircularityError)");
+	/**
+	 * Start of a stack trace, with or without the prefix of an uncaught exception or a cause
+	 */
+	private static final Pattern TRACE_HEADER = Pattern.compile(
+		"^(Exception in thread \"[^\"]*\" |Caused by: )?((?:[\\w$]+\\.)+[\\w$]*(?:Error|Exception|Throwable))(?::.*)?$");
+	/**
+	 * Lines the server may print after the fatal stack trace while it shuts down
+	 */
+	private static final int TRACE_TAIL_LINES = 50;
+	private static final long STOP_TIMEOUT_SECONDS = 60L;
+
+	private final long initialDelay;
+	private final long maxDelay;
+	private final int crashLoopCount;
+	private final long crashLoopWindow;
+	private final Deque<Long> crashTimes = new ArrayDeque<>();
+	private volatile boolean stopping = false;
+	private volatile ServerProcess current = null;
+
+	public Supervisor(final Options options)
+	{
+		this.initialDelay = Math.max(0L, options.getRestartDelay());
+		this.maxDelay = Math.max(this.initialDelay, options.getRestartMaxDelay());
+		this.crashLoopCount = Math.max(1, options.getCrashLoopCount());
+		this.crashLoopWindow = TimeUnit.SECONDS.toMillis(options.getCrashLoopWindow());
+	}
+
+	/**
+	 * @return the exit code of the last run
+	 */
+	public int run(final Launcher launcher) throws Exception
+	{
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "supervisor-stop"));
+		int consecutiveCrashes = 0;
+		while (true)
+		{
+			final CrashWatcher crashWatcher = new CrashWatcher();
+			final long startTime = System.currentTimeMillis();
+			this.current = launcher.start(crashWatcher);
+			final int exitValue = this.current.waitFor();
+			this.current = null;
+			final boolean augmentationFailure = exitValue != 0 && crashWatcher.isAugmentationFailure();
+			launcher.onExit(exitValue, augmentationFailure);
+			if (this.stopping)
+			{
+				return exitValue;
+			}
+			if (exitValue == 0)
+			{
+				Globals.getLogger().info("Server stopped, not restarting");
+				return 0;
+			}
+			final long now = System.currentTimeMillis();
+			this.crashTimes.add(now);
+			while (this.crashTimes.peekFirst() < now - this.crashLoopWindow)
+			{
+				this.crashTimes.pollFirst();
+			}
+			if (this.crashTimes.size() >= this.crashLoopCount)
+			{
+				Globals.getLogger().fatal("Server crashed %d times in %d seconds, giving up", this.crashTimes.size(),
+					TimeUnit.MILLISECONDS.toSeconds(this.crashLoopWindow));
+				return exitValue;
+			}
+			// a server that stayed up for a whole window starts the backoff over
+			consecutiveCrashes = now - startTime > this.crashLoopWindow ? 1 : consecutiveCrashes + 1;
+			final long delay = Math.min(this.maxDelay, this.initialDelay << Math.min(consecutiveCrashes - 1, 20));
+			Globals.getLogger().warn("Server exited with code %d, restarting in %d ms%s", exitValue, delay,
+				augmentationFailure ? " with a rebuilt jar" : "");
+			Thread.sleep(delay);
+			if (this.stopping)
+			{
+				return exitValue;
+			}
+		}
+	}
+
+	private void stop()
+	{
+		this.stopping = true;
+		final ServerProcess server = this.current;
+		if (server == null)
+		{
+			return;
+		}
+		try
+		{
+			server.stop(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Globals.getLogger().warn("Interrupted while stopping the server%n%s", Logger.exceptionToString(ex));
+		}
+	}
+
+	/**
+	 * Remembers what the last stack trace in the server's output was about, and how much was printed after it
+	 */
+	private static class CrashWatcher implements Consumer<ConsoleEvent>
+	{
+		private boolean augmentationError = false;
+		private int linesSinceTrace = Integer.MAX_VALUE;
+
+		@Override
+		public synchronized void accept(final ConsoleEvent event)
+		{
+			final String line = event.getMessage().trim();
+			final Matcher matcher = TRACE_HEADER.matcher(line);
+			if (matcher.matches())
+			{
+				final boolean linkage = AUGMENTATION_ERROR.matcher(matcher.group(2)).matches();
+				if ("Caused by: ".equals(matcher.group(1)))
+				{
+					this.augmentationError |= linkage;
+				}
+				else
+				{
+					this.augmentationError = linkage;
+					this.linesSinceTrace = 0;
+				}
+			}
+			else if (!line.startsWith("at ") && !line.startsWith("...") && this.linesSinceTrace < Integer.MAX_VALUE)
+			{
+				this.linesSinceTrace++;
+			}
+		}
+
+		synchronized boolean isAugmentationFailure()
+		{
+			return this.augmentationError && this.linesSinceTrace <= TRACE_TAIL_LINES;
+		}
+	}
+
+	public interface Launcher
+	{
+		/**
+		 * Brings the server jar up to date and starts the server
+		 */
+		ServerProcess start(Consumer<ConsoleEvent> listener) throws Exception;
+
+		/**
+		 * @param augmentationFailure whether the server died of an error pointing at the augmented jar
+		 */
+		void onExit(int exitValue, boolean augmentationFailure);
+	}
+}
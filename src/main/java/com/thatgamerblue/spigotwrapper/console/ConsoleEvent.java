@@ -0,0 +1,86 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.console;
+
+import lombok.Data;
+import org.json.simple.JSONObject;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One line printed by the server. Both the Spigot console format ({@code [12:00:00 INFO]: message}) and the vanilla
+ * log4j format ({@code [12:00:00] [Server thread/INFO]: message}) are understood. Lines in neither format, like the
+ * rest of a stack trace, keep the level and thread of the line before them.
+ */
+@Data
+public class ConsoleEvent
+{
+	private static final Pattern LINE_PATTERN =
+		Pattern.compile("^\\[(\\d{2}:\\d{2}:\\d{2})(?: ([A-Z]+))?](?: \\[([^\\]]+)/([A-Z]+)])?:? (.*)$");
+	private static final Pattern ANSI_PATTERN = Pattern.compile("\u001B\\[[;\\d]*[A-Za-z]");
+
+	private final long timestamp;
+	private final String stream;
+	private final String time;
+	private final String thread;
+	private final String level;
+	private final String message;
+	private final boolean continuation;
+
+	public static ConsoleEvent parse(final String rawLine, final String stream, final ConsoleEvent previous)
+	{
+		final String line = ANSI_PATTERN.matcher(rawLine).replaceAll("");
+		final long timestamp = System.currentTimeMillis();
+		final Matcher matcher = LINE_PATTERN.matcher(line);
+		if (matcher.matches())
+		{
+			final String level = matcher.group(2) != null ? matcher.group(2) : matcher.group(4);
+			return new ConsoleEvent(timestamp, stream, matcher.group(1), matcher.group(3), level, matcher.group(5),
+				false);
+		}
+		if (previous != null)
+		{
+			return new ConsoleEvent(timestamp, stream, previous.getTime(), previous.getThread(), previous.getLevel(),
+				line, true);
+		}
+		return new ConsoleEvent(timestamp, stream, null, null, stream.equals("stderr") ? "ERROR" : "INFO", line, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	public String toJson()
+	{
+		final JSONObject object = new JSONObject();
+		object.put("timestamp", this.timestamp);
+		object.put("stream", this.stream);
+		if (this.time != null)
+		{
+			object.put("time", this.time);
+		}
+		if (this.thread != null)
+		{
+			object.put("thread", this.thread);
+		}
+		object.put("level", this.level);
+		object.put("message", this.message);
+		if (this.continuation)
+		{
+			object.put("continuation", true);
+		}
+		return object.toJSONString();
+	}
+}
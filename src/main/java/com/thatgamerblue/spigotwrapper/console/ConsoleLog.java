@@ -0,0 +1,224 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.console;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import com.thatgamerblue.spigotwrapper.util.Utils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes console events as JSON lines to console.jsonl in the log directory. Once the file passes the size limit it
+ * is renamed and gzipped in the background, and only the newest rotated files are kept. Writing happens on its own
+ * thread so the pumps only ever hand events over.
+ */
+public class ConsoleLog implements Closeable
+{
+	private static final String CURRENT_NAME = "console.jsonl";
+	private static final ConsoleEvent END = new ConsoleEvent(0L, null, null, null, null, null, false);
+
+	private final File directory;
+	private final long maxBytes;
+	private final int keep;
+	private final BlockingQueue<ConsoleEvent> queue = new ArrayBlockingQueue<>(1 << 16);
+	private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+		final Thread thread = new Thread(r, "console-log-compressor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Thread writerThread;
+	private final LongAdder droppedEvents = new LongAdder();
+	/**
+	 * Set once the writer thread has stopped for good, after which events are dropped instead of queued
+	 */
+	private volatile boolean failed = false;
+	private Writer writer;
+	private long size;
+
+	public ConsoleLog(final File directory, final long maxBytes, final int keep) throws IOException
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.keep = keep;
+		this.directory.mkdirs();
+		this.open();
+		this.writerThread = new Thread(this::writeLoop, "console-log-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * Blocks while the queue is full and the writer is alive, never once the writer has stopped, so the pumps keep
+	 * forwarding the server's output even if the log can't be written
+	 */
+	public void write(final ConsoleEvent event) throws InterruptedException
+	{
+		if (!this.enqueue(event))
+		{
+			this.droppedEvents.increment();
+		}
+	}
+
+	private boolean enqueue(final ConsoleEvent event) throws InterruptedException
+	{
+		while (!this.failed)
+		{
+			if (this.queue.offer(event, 100, TimeUnit.MILLISECONDS))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void open() throws IOException
+	{
+		final File current = new File(this.directory, CURRENT_NAME);
+		this.size = current.length();
+		this.writer = new BufferedWriter(
+			new OutputStreamWriter(new FileOutputStream(current, true), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	private void writeLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				final ConsoleEvent event = this.queue.take();
+				if (event == END)
+				{
+					break;
+				}
+				final String line = event.toJson();
+				this.writer.write(line);
+				this.writer.write('\n');
+				// counted in chars, close enough to bytes for a size limit
+				this.size += line.length() + 1;
+				if (this.size >= this.maxBytes)
+				{
+					this.rotate();
+				}
+				else if (this.queue.isEmpty())
+				{
+					this.writer.flush();
+				}
+			}
+		}
+		catch (IOException | InterruptedException | RuntimeException ex)
+		{
+			Globals.getLogger().warn("Console log writer stopped, further console output won't be logged%n%s",
+				Logger.exceptionToString(ex));
+		}
+		finally
+		{
+			this.failed = true;
+			this.queue.clear();
+			try
+			{
+				this.writer.close();
+			}
+			catch (IOException ex)
+			{
+				Globals.getLogger().warn("Failed to close %s%n%s", CURRENT_NAME, Logger.exceptionToString(ex));
+			}
+		}
+	}
+
+	private void rotate() throws IOException
+	{
+		this.writer.close();
+		final String name = "console-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".jsonl";
+		final File rotated = new File(this.directory, name);
+		if (!new File(this.directory, CURRENT_NAME).renameTo(rotated))
+		{
+			throw new IOException("Failed to rotate " + CURRENT_NAME);
+		}
+		this.open();
+		this.compressor.submit(() -> this.compress(rotated));
+	}
+
+	private void compress(final File file)
+	{
+		final File compressed = new File(file.getPath() + ".gz");
+		try (final InputStream in = new FileInputStream(file);
+			 final OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 1 << 16))
+		{
+			Utils.copy(in, out);
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to compress %s%n%s", file.getName(), Logger.exceptionToString(ex));
+			return;
+		}
+		file.delete();
+		final File[] old = this.directory.listFiles((dir, fileName) -> fileName.startsWith("console-")
+			&& fileName.endsWith(".jsonl.gz"));
+		if (old != null && old.length > this.keep)
+		{
+			// the timestamp in the name sorts oldest first
+			Arrays.sort(old, Comparator.comparing(File::getName));
+			for (int i = 0; i < old.length - this.keep; i++)
+			{
+				old[i].delete();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			// a writer that already stopped won't take END, join returns straight away then
+			this.enqueue(END);
+			this.writerThread.join();
+			this.compressor.shutdown();
+			this.compressor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (this.droppedEvents.sum() > 0)
+		{
+			Globals.getLogger().warn("Dropped %d console events that couldn't be logged", this.droppedEvents.sum());
+		}
+	}
+}
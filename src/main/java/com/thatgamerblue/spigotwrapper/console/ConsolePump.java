@@ -0,0 +1,158 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.console;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Replaces inheritIO for the server's stdout and stderr. Each stream gets a thread that forwards every chunk to the
+ * wrapper's own stream as soon as it's read, then splits it into lines and hands them to the listeners and the
+ * console log. stdin is still inherited by the server.
+ */
+public class ConsolePump implements Closeable
+{
+	private final ConsoleLog consoleLog;
+	private final List<Consumer<ConsoleEvent>> listeners = new CopyOnWriteArrayList<>();
+	private final List<Thread> threads = new ArrayList<>();
+
+	/**
+	 * @param consoleLog where events are written, or null to only forward and notify listeners
+	 */
+	public ConsolePump(final ConsoleLog consoleLog)
+	{
+		this.consoleLog = consoleLog;
+	}
+
+	public void addListener(final Consumer<ConsoleEvent> listener)
+	{
+		this.listeners.add(listener);
+	}
+
+	public void start(final Process process)
+	{
+		this.startPump("stdout", process.getInputStream(), System.out);
+		this.startPump("stderr", process.getErrorStream(), System.err);
+	}
+
+	private void startPump(final String stream, final InputStream in, final PrintStream out)
+	{
+		final Thread thread = new Thread(() -> this.pump(stream, in, out), "console-pump-" + stream);
+		thread.setDaemon(true);
+		thread.start();
+		this.threads.add(thread);
+	}
+
+	private void pump(final String stream, final InputStream in, final PrintStream out)
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(8192);
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		ConsoleEvent previous = null;
+		try (final ReadableByteChannel channel = Channels.newChannel(in))
+		{
+			while (channel.read(buffer) >= 0)
+			{
+				final byte[] bytes = buffer.array();
+				final int length = buffer.position();
+				out.write(bytes, 0, length);
+				out.flush();
+				int lineStart = 0;
+				for (int i = 0; i < length; i++)
+				{
+					if (bytes[i] == '\n')
+					{
+						line.write(bytes, lineStart, i - lineStart);
+						previous = this.emit(stream, line, previous);
+						lineStart = i + 1;
+					}
+				}
+				line.write(bytes, lineStart, length - lineStart);
+				buffer.clear();
+			}
+			if (line.size() > 0)
+			{
+				this.emit(stream, line, previous);
+			}
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Stopped reading server %s%n%s", stream, Logger.exceptionToString(ex));
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private ConsoleEvent emit(final String stream, final ByteArrayOutputStream line, final ConsoleEvent previous)
+		throws InterruptedException
+	{
+		String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		line.reset();
+		if (text.endsWith("\r"))
+		{
+			text = text.substring(0, text.length() - 1);
+		}
+		final ConsoleEvent event = ConsoleEvent.parse(text, stream, previous);
+		for (final Consumer<ConsoleEvent> listener : this.listeners)
+		{
+			listener.accept(event);
+		}
+		if (this.consoleLog != null)
+		{
+			this.consoleLog.write(event);
+		}
+		return event;
+	}
+
+	/**
+	 * Waits for the server's streams to close, then closes the console log
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			for (final Thread thread : this.threads)
+			{
+				thread.join();
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (this.consoleLog != null)
+		{
+			this.consoleLog.close();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import lombok.Data;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AugmentationEngine
+{
+	private final PluginManager pluginManager;
+	private final int threads;
+	private final ClassCache classCache;
+	private final String entryStore;
+	@Getter
+	private final AugmentationMetrics metrics = new AugmentationMetrics();
+	@Getter
+	private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * @param entryStore where augmented classes wait to be written, see {@link EntryStore#create(String, File)}
+	 */
+	public AugmentationEngine(final PluginManager pluginManager, final int threads, final ClassCache classCache,
+		final String entryStore)
+	{
+		this.pluginManager = pluginManager;
+		this.threads = Math.max(1, threads);
+		this.classCache = classCache;
+		this.entryStore = entryStore;
+	}
+
+	public void augment(final ServerJar jar, final File destination) throws IOException, InterruptedException
+	{
+		destination.getParentFile().mkdirs();
+		if (destination.exists())
+		{
+			destination.delete();
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(this.threads, new WorkerThreadFactory());
+		this.pluginManager.setMetrics(this.metrics);
+		Globals.getLogger().info("Writing jar file...");
+		try (final EntryStore store = EntryStore.create(this.entryStore, destination.getParentFile());
+			 final ZipArchive archive = new ZipArchive(jar.getFile());
+			 final ZipArchiveWriter writer = new ZipArchiveWriter(destination))
+		{
+			try
+			{
+				this.writeEntries(archive, writer, store, executor);
+			}
+			finally
+			{
+				// workers read straight from the mapped archive, so they have to be gone before it is unmapped
+				executor.shutdownNow();
+				boolean terminated = false;
+				try
+				{
+					terminated = executor.awaitTermination(1, TimeUnit.MINUTES);
+				}
+				finally
+				{
+					if (!terminated)
+					{
+						Globals.getLogger().warn("Augmentation workers are still running, leaving %s mapped",
+							jar.getFile().getName());
+						archive.detach();
+					}
+				}
+				this.metrics.recordEntryStore(store.getType(), store.getPeakHeldBytes(), store.getReservedBytes());
+			}
+		}
+		finally
+		{
+			this.pluginManager.setMetrics(null);
+		}
+		this.metrics.printSummary();
+		try
+		{
+			this.metrics.writeReport();
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to write augmentation report%n%s", Logger.exceptionToString(ex));
+		}
+		if (!this.failures.isEmpty())
+		{
+			Globals.getLogger().warn("Failed to augment %d classes, originals were kept", this.failures.size());
+			for (final Failure failure : this.failures)
+			{
+				Globals.getLogger().warn("%s%n%s", failure.getEntryName(), Logger.exceptionToString(failure.getCause()));
+			}
+		}
+	}
+
+	private void writeEntries(final ZipArchive archive, final ZipArchiveWriter writer, final EntryStore store,
+		final ExecutorService executor) throws IOException, InterruptedException
+	{
+		final List<ZipArchive.Entry> sortedEntries = ServerJar.getSortedEntries(archive);
+		// the manifest has to stay at the front of the jar for JarInputStream to find it
+		final ZipArchive.Entry manifestEntry = archive.getEntry("META-INF/MANIFEST.MF");
+		if (manifestEntry != null)
+		{
+			sortedEntries.remove(manifestEntry);
+			writer.copyEntry(archive, manifestEntry);
+		}
+		final Iterator<ZipArchive.Entry> entries = sortedEntries.iterator();
+		// only a bounded window of classes is held in memory, and entries are always written in jar order
+		final Deque<Pending> window = new ArrayDeque<>();
+		final int maxInFlight = this.threads * 4;
+		int inFlight = 0;
+		while (entries.hasNext() || !window.isEmpty())
+		{
+			while (entries.hasNext() && inFlight < maxInFlight)
+			{
+				final ZipArchive.Entry entry = entries.next();
+				Future<Result> future = null;
+				if (entry.getName().endsWith(".class"))
+				{
+					future = executor.submit(() -> this.readAndAugment(archive, entry, store));
+					inFlight++;
+				}
+				window.add(new Pending(entry, future));
+			}
+			final Pending pending = window.poll();
+			if (pending.getFuture() != null)
+			{
+				inFlight--;
+			}
+			this.write(archive, pending, writer);
+		}
+	}
+
+	private void write(final ZipArchive archive, final Pending pending, final ZipArchiveWriter writer)
+		throws IOException, InterruptedException
+	{
+		final ZipArchive.Entry entry = pending.getEntry();
+		final Result result;
+		try
+		{
+			result = pending.getFuture() == null ? null : pending.getFuture().get();
+		}
+		catch (ExecutionException ex)
+		{
+			throw new IOException("Failed to read " + entry.getName(), ex.getCause());
+		}
+		if (result == null)
+		{
+			writer.copyEntry(archive, entry);
+		}
+		else if (result.getCachedEntry() != null)
+		{
+			writer.copyEntry(this.classCache.getPreviousJar(), result.getCachedEntry());
+		}
+		else
+		{
+			try
+			{
+				writer.writeEntry(entry.getName(), entry.getDosTime(), result.getDeflated());
+			}
+			finally
+			{
+				result.getDeflated().getCompressed().release();
+			}
+		}
+	}
+
+	private Result readAndAugment(final ZipArchive archive, final ZipArchive.Entry entry, final EntryStore store)
+		throws IOException
+	{
+		final String entryName = entry.getName();
+		final String className = entryName.substring(0, entryName.length() - 6).replace("/", ".");
+		final String pluginFingerprint = this.pluginManager.getPluginFingerprint(className);
+		if (pluginFingerprint.isEmpty())
+		{
+			return null;
+		}
+		final byte[] bytes = archive.readBytes(entry);
+		final String key = this.classCache.computeKey(bytes, pluginFingerprint);
+		final ClassCache.Record cached = this.classCache.lookup(entryName, key);
+		if (cached != null)
+		{
+			this.metrics.getReusedClasses().increment();
+			this.classCache.record(entryName, key, cached.isChanged());
+			return cached.isChanged() ? new Result(null, this.classCache.getPreviousJar().getEntry(entryName)) : null;
+		}
+		final byte[] augmented;
+		try
+		{
+			augmented = this.pluginManager.onClassLoaded(bytes, className);
+		}
+		catch (Throwable t)
+		{
+			this.failures.add(new Failure(entryName, t));
+			this.metrics.getFailedClasses().increment();
+			return null;
+		}
+		// untouched classes are copied across still compressed instead of being deflated again
+		final boolean changed = augmented != null && augmented != bytes && !Arrays.equals(augmented, bytes);
+		this.classCache.record(entryName, key, changed);
+		return changed ? new Result(ZipArchiveWriter.deflate(augmented, store), null) : null;
+	}
+
+	@Data
+	private static class Pending
+	{
+		private final ZipArchive.Entry entry;
+		private final Future<Result> future;
+	}
+
+	@Data
+	private static class Result
+	{
+		private final ZipArchiveWriter.Deflated deflated;
+		private final ZipArchive.Entry cachedEntry;
+	}
+
+	@Data
+	public static class Failure
+	{
+		private final String entryName;
+		private final Throwable cause;
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r)
+		{
+			final Thread thread = new Thread(r, "augmentation-worker-" + this.counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
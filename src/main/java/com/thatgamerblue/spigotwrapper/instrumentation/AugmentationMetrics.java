@@ -0,0 +1,207 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import lombok.Data;
+import lombok.Getter;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects where augmentation time goes, per plugin and per class. Filled in by
+ * {@link com.thatgamerblue.spigotwrapper.plugins.PluginManager#onClassLoaded(byte[], String)} from every worker.
+ */
+public class AugmentationMetrics
+{
+	public static final File REPORT_FILE = new File("cache/augmentation-report.json");
+	/**
+	 * Time spent parsing and writing class files for {@link com.thatgamerblue.spigotwrapper.plugins.ClassNodePlugin}s,
+	 * which isn't any single plugin's fault
+	 */
+	public static final String ASM = "(asm read/write)";
+	private static final int SLOWEST_CLASSES = 10;
+
+	private final Map<String, PluginStats> plugins = new ConcurrentHashMap<>();
+	private final Queue<ClassStats> classes = new ConcurrentLinkedQueue<>();
+	private final long startTime = System.nanoTime();
+	@Getter
+	private final LongAdder reusedClasses = new LongAdder();
+	@Getter
+	private final LongAdder failedClasses = new LongAdder();
+	private volatile EntryStoreStats entryStore;
+
+	public void recordPlugin(final String plugin, final long nanos, final boolean changed)
+	{
+		final PluginStats stats = this.plugins.computeIfAbsent(plugin, k -> new PluginStats());
+		stats.getNanos().add(nanos);
+		stats.getCalls().increment();
+		if (changed)
+		{
+			stats.getChanged().increment();
+		}
+	}
+
+	public void recordClass(final String className, final long nanos, final int bytesIn, final int bytesOut,
+		final boolean changed)
+	{
+		this.classes.add(new ClassStats(className, nanos, bytesIn, bytesOut, changed));
+	}
+
+	public void recordEntryStore(final String type, final long peakHeldBytes, final long reservedBytes)
+	{
+		this.entryStore = new EntryStoreStats(type, peakHeldBytes, reservedBytes);
+	}
+
+	public void printSummary()
+	{
+		final long wallNanos = System.nanoTime() - this.startTime;
+		long bytesIn = 0;
+		long bytesOut = 0;
+		int changed = 0;
+		for (final ClassStats stats : this.classes)
+		{
+			bytesIn += stats.getBytesIn();
+			bytesOut += stats.getBytesOut();
+			changed += stats.isChanged() ? 1 : 0;
+		}
+		Globals.getLogger().info("Augmented %d classes (%d changed, %d reused, %d failed) in %d ms, %d -> %d bytes",
+			this.classes.size(), changed, this.reusedClasses.sum(), this.failedClasses.sum(), wallNanos / 1000000L,
+			bytesIn, bytesOut);
+		final EntryStoreStats store = this.entryStore;
+		if (store != null)
+		{
+			Globals.getLogger().info("Entry store (%s) held at most %d bytes of augmented classes, %d bytes reserved",
+				store.getType(), store.getPeakHeldBytes(), store.getReservedBytes());
+		}
+		if (this.plugins.isEmpty())
+		{
+			return;
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-32s %8s %8s %10s %10s", "plugin", "calls", "changed", "total ms", "avg us"));
+		for (final Map.Entry<String, PluginStats> entry : new TreeMap<>(this.plugins).entrySet())
+		{
+			final PluginStats stats = entry.getValue();
+			sb.append(String.format("%n%-32s %8d %8d %10d %10d", entry.getKey(), stats.getCalls().sum(),
+				stats.getChanged().sum(), stats.getNanos().sum() / 1000000L,
+				stats.getNanos().sum() / 1000L / Math.max(1L, stats.getCalls().sum())));
+		}
+		for (final ClassStats stats : this.getSlowestClasses(SLOWEST_CLASSES))
+		{
+			sb.append(String.format("%n  %-62s %8d us", stats.getName(), stats.getNanos() / 1000L));
+		}
+		Globals.getLogger().info("Augmentation timings:%n%s", sb.toString());
+	}
+
+	@SuppressWarnings("unchecked")
+	public void writeReport() throws IOException
+	{
+		final JSONObject root = new JSONObject();
+		root.put("wall_ms", (System.nanoTime() - this.startTime) / 1000000L);
+		root.put("reused_classes", this.reusedClasses.sum());
+		root.put("failed_classes", this.failedClasses.sum());
+		final EntryStoreStats store = this.entryStore;
+		if (store != null)
+		{
+			final JSONObject storeObject = new JSONObject();
+			storeObject.put("type", store.getType());
+			storeObject.put("peak_held_bytes", store.getPeakHeldBytes());
+			storeObject.put("reserved_bytes", store.getReservedBytes());
+			root.put("entry_store", storeObject);
+		}
+		final JSONObject pluginsObject = new JSONObject();
+		for (final Map.Entry<String, PluginStats> entry : this.plugins.entrySet())
+		{
+			final JSONObject pluginObject = new JSONObject();
+			pluginObject.put("calls", entry.getValue().getCalls().sum());
+			pluginObject.put("changed", entry.getValue().getChanged().sum());
+			pluginObject.put("total_us", entry.getValue().getNanos().sum() / 1000L);
+			pluginsObject.put(entry.getKey(), pluginObject);
+		}
+		root.put("plugins", pluginsObject);
+		final JSONArray classesArray = new JSONArray();
+		for (final ClassStats stats : this.getSlowestClasses(Integer.MAX_VALUE))
+		{
+			final JSONObject classObject = new JSONObject();
+			classObject.put("name", stats.getName());
+			classObject.put("us", stats.getNanos() / 1000L);
+			classObject.put("bytes_in", stats.getBytesIn());
+			classObject.put("bytes_out", stats.getBytesOut());
+			classObject.put("changed", stats.isChanged());
+			classesArray.add(classObject);
+		}
+		root.put("classes", classesArray);
+		REPORT_FILE.getParentFile().mkdirs();
+		final File tempFile = new File(REPORT_FILE.getPath() + ".tmp");
+		try (final Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8))
+		{
+			root.writeJSONString(writer);
+		}
+		Files.move(tempFile.toPath(), REPORT_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Globals.getLogger().debug("Wrote augmentation report to %s", REPORT_FILE.getPath());
+	}
+
+	private List<ClassStats> getSlowestClasses(final int limit)
+	{
+		final List<ClassStats> sorted = new ArrayList<>(this.classes);
+		sorted.sort(Comparator.comparingLong(ClassStats::getNanos).reversed());
+		return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+	}
+
+	@Getter
+	private static class PluginStats
+	{
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder changed = new LongAdder();
+	}
+
+	@Data
+	private static class EntryStoreStats
+	{
+		private final String type;
+		private final long peakHeldBytes;
+		private final long reservedBytes;
+	}
+
+	@Data
+	private static class ClassStats
+	{
+		private final String name;
+		private final long nanos;
+		private final int bytesIn;
+		private final int bytesOut;
+		private final boolean changed;
+	}
+}
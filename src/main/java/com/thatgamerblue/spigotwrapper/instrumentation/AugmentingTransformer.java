@@ -0,0 +1,70 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs server classes through the plugins as the JVM loads them, used when the wrapper is attached as a java agent.
+ */
+public class AugmentingTransformer implements ClassFileTransformer
+{
+	private final PluginManager pluginManager;
+	private final Set<String> serverClasses = new HashSet<>();
+
+	public AugmentingTransformer(final PluginManager pluginManager, final ZipArchive serverArchive)
+	{
+		this.pluginManager = pluginManager;
+		for (final ZipArchive.Entry entry : serverArchive.getEntries())
+		{
+			if (entry.getName().endsWith(".class"))
+			{
+				this.serverClasses.add(entry.getName().substring(0, entry.getName().length() - 6));
+			}
+		}
+	}
+
+	@Override
+	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+		final ProtectionDomain protectionDomain, final byte[] classfileBuffer)
+	{
+		if (className == null || loader == null || !this.serverClasses.contains(className))
+		{
+			return null;
+		}
+		try
+		{
+			final byte[] transformed = this.pluginManager.onClassLoaded(classfileBuffer, className.replace("/", "."));
+			return transformed == classfileBuffer ? null : transformed;
+		}
+		catch (Throwable t)
+		{
+			// the JVM silently ignores exceptions thrown from transformers, so make sure they're seen
+			Globals.getLogger().fatal("Failed to augment %s, loading the original%n%s", className,
+				Logger.exceptionToString(t));
+			return null;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import com.thatgamerblue.spigotwrapper.util.Utils;
+import lombok.Data;
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, per class, a key made from the input class bytes and the plugins that transformed it. On the next
+ * rebuild a class whose key hasn't changed is copied from the previous augmented jar instead of being transformed.
+ */
+public class ClassCache implements Closeable
+{
+	public static final File INDEX_FILE = new File("cache/classes.idx");
+	private static final String HEADER = "classes-v1";
+
+	private final Map<String, Record> previous;
+	@Getter
+	private final ZipArchive previousJar;
+	private final Map<String, Record> current = new ConcurrentHashMap<>();
+
+	private ClassCache(final Map<String, Record> previous, final ZipArchive previousJar)
+	{
+		this.previous = previous;
+		this.previousJar = previousJar;
+	}
+
+	public static ClassCache load(final File previousJar)
+	{
+		if (!INDEX_FILE.exists() || !previousJar.exists())
+		{
+			return new ClassCache(new HashMap<>(), null);
+		}
+		final Map<String, Record> records = new HashMap<>();
+		try (final BufferedReader reader = Files.newBufferedReader(INDEX_FILE.toPath(), StandardCharsets.UTF_8))
+		{
+			// the index is only trusted if it was written for the jar that is on disk now
+			final String header = reader.readLine();
+			if (header == null || !header.equals(HEADER + " " + previousJar.length() + " " + previousJar.lastModified()))
+			{
+				Globals.getLogger().debug("Class cache index doesn't match %s, ignoring it", previousJar.getName());
+				return new ClassCache(records, null);
+			}
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				final String[] parts = line.split(" ", 3);
+				if (parts.length == 3)
+				{
+					records.put(parts[2], new Record(parts[0], parts[1].equals("1")));
+				}
+			}
+			final ClassCache cache = new ClassCache(records, new ZipArchive(previousJar));
+			Globals.getLogger().debug("Loaded %d cached classes", records.size());
+			return cache;
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to read class cache, ignoring it%n%s", Logger.exceptionToString(ex));
+			return new ClassCache(new HashMap<>(), null);
+		}
+	}
+
+	public String computeKey(final byte[] classBytes, final String pluginFingerprint)
+	{
+		final MessageDigest md = Utils.getSha256Digest();
+		md.update(classBytes);
+		md.update(pluginFingerprint.getBytes(StandardCharsets.UTF_8));
+		final byte[] hash = md.digest();
+		final StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (final byte b : hash)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	public Record lookup(final String entryName, final String key)
+	{
+		final Record record = this.previous.get(entryName);
+		if (record == null || !record.getKey().equals(key))
+		{
+			return null;
+		}
+		if (record.isChanged() && (this.previousJar == null || this.previousJar.getEntry(entryName) == null))
+		{
+			return null;
+		}
+		return record;
+	}
+
+	public void record(final String entryName, final String key, final boolean changed)
+	{
+		this.current.put(entryName, new Record(key, changed));
+	}
+
+	public void commit(final File builtJar, final File finalJar) throws IOException
+	{
+		this.close();
+		INDEX_FILE.delete();
+		Files.move(builtJar.toPath(), finalJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		final File tempIndex = new File(INDEX_FILE.getPath() + ".tmp");
+		try (final BufferedWriter writer = Files.newBufferedWriter(tempIndex.toPath(), StandardCharsets.UTF_8))
+		{
+			writer.write(HEADER + " " + finalJar.length() + " " + finalJar.lastModified());
+			writer.newLine();
+			for (final Map.Entry<String, Record> entry : new TreeMap<>(this.current).entrySet())
+			{
+				writer.write(entry.getValue().getKey() + " " + (entry.getValue().isChanged() ? "1" : "0") + " " + entry.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(tempIndex.toPath(), INDEX_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (this.previousJar != null)
+		{
+			this.previousJar.close();
+		}
+	}
+
+	@Data
+	public static class Record
+	{
+		private final String key;
+		private final boolean changed;
+	}
+}
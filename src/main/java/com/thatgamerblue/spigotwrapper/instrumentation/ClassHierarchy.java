@@ -0,0 +1,154 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Utils;
+import lombok.Data;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Superclass and interface graph of the server jar, taken from its {@link ServerJarIndex} without loading any
+ * classes. Classes that aren't in the jar (mostly the JDK) are looked up as resources of the wrapper's class loader.
+ */
+public class ClassHierarchy
+{
+	private final Map<String, Node> nodes = new HashMap<>();
+	private final Map<String, Optional<Node>> externalNodes = new ConcurrentHashMap<>();
+
+	public ClassHierarchy(final ServerJarIndex index)
+	{
+		for (final ServerJarIndex.ClassInfo info : index.getClasses())
+		{
+			this.nodes.put(info.getName(), new Node(info.getName(), info.getSuperName(), info.getInterfaces(),
+				info.isInterface()));
+		}
+	}
+
+	/**
+	 * @param internalName class name using slashes, e.g. {@code java/lang/Object}
+	 * @return the node for the class, or null if it can't be found
+	 */
+	public Node getNode(final String internalName)
+	{
+		final Node node = this.nodes.get(internalName);
+		if (node != null)
+		{
+			return node;
+		}
+		return this.externalNodes.computeIfAbsent(internalName, ClassHierarchy::readExternal).orElse(null);
+	}
+
+	public boolean isAssignableFrom(final String type, final String subType)
+	{
+		if (type.equals(subType) || type.equals("java/lang/Object"))
+		{
+			return true;
+		}
+		final Node node = this.getNode(subType);
+		if (node == null)
+		{
+			return false;
+		}
+		if (node.getSuperName() != null && this.isAssignableFrom(type, node.getSuperName()))
+		{
+			return true;
+		}
+		for (final String itf : node.getInterfaces())
+		{
+			if (this.isAssignableFrom(type, itf))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getCommonSuperClass(final String type1, final String type2)
+	{
+		final Node node1 = this.requireNode(type1);
+		final Node node2 = this.requireNode(type2);
+		if (this.isAssignableFrom(type1, type2))
+		{
+			return type1;
+		}
+		if (this.isAssignableFrom(type2, type1))
+		{
+			return type2;
+		}
+		if (node1.isInterface() || node2.isInterface())
+		{
+			return "java/lang/Object";
+		}
+		Node current = node1;
+		while (current.getSuperName() != null)
+		{
+			if (this.isAssignableFrom(current.getSuperName(), type2))
+			{
+				return current.getSuperName();
+			}
+			current = this.requireNode(current.getSuperName());
+		}
+		return "java/lang/Object";
+	}
+
+	private Node requireNode(final String internalName)
+	{
+		final Node node = this.getNode(internalName);
+		if (node == null)
+		{
+			throw new TypeNotPresentException(internalName.replace('/', '.'), null);
+		}
+		return node;
+	}
+
+	private static Optional<Node> readExternal(final String internalName)
+	{
+		final ClassLoader classLoader = ClassHierarchy.class.getClassLoader();
+		try (final InputStream in = classLoader.getResourceAsStream(internalName + ".class"))
+		{
+			if (in == null)
+			{
+				return Optional.empty();
+			}
+			final ClassReader reader = new ClassReader(Utils.readFully(in, 0));
+			return Optional.of(new Node(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(),
+				(reader.getAccess() & Opcodes.ACC_INTERFACE) != 0));
+		}
+		catch (IOException ex)
+		{
+			return Optional.empty();
+		}
+	}
+
+	@Data
+	public static class Node
+	{
+		private final String name;
+		private final String superName;
+		private final String[] interfaces;
+		private final boolean isInterface;
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds augmented entries between the worker that deflated them and the writer that puts them into the jar.
+ * The heap store keeps plain arrays, the offheap and file stores keep them in recycled fixed size blocks of direct
+ * memory or of a temporary file, so a rebuild leaves almost nothing behind for the garbage collector.
+ */
+public abstract class EntryStore implements Closeable
+{
+	static final int BLOCK_SIZE = 8192;
+
+	@Getter
+	private final String type;
+	private final AtomicLong heldBytes = new AtomicLong();
+	private final AtomicLong peakHeldBytes = new AtomicLong();
+
+	protected EntryStore(final String type)
+	{
+		this.type = type;
+	}
+
+	/**
+	 * @param type heap, offheap or file, anything else falls back to heap
+	 * @param directory where the file store puts its temporary file
+	 */
+	public static EntryStore create(final String type, final File directory) throws IOException
+	{
+		switch (type.toLowerCase(Locale.ROOT))
+		{
+			case "heap":
+				return new HeapStore();
+			case "offheap":
+				return new DirectStore();
+			case "file":
+				return new FileStore(directory);
+			default:
+				Globals.getLogger().warn("Unknown entry store %s, keeping entries on the heap", type);
+				return new HeapStore();
+		}
+	}
+
+	public abstract Stored put(byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * @return bytes of direct memory or temporary file set aside for entries, whether or not they are in use
+	 */
+	public abstract long getReservedBytes();
+
+	public long getHeldBytes()
+	{
+		return this.heldBytes.get();
+	}
+
+	public long getPeakHeldBytes()
+	{
+		return this.peakHeldBytes.get();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+	}
+
+	void onStored(final int length)
+	{
+		final long held = this.heldBytes.addAndGet(length);
+		this.peakHeldBytes.accumulateAndGet(held, Math::max);
+	}
+
+	void onReleased(final int length)
+	{
+		this.heldBytes.addAndGet(-length);
+	}
+
+	/**
+	 * An entry in a store. It stays readable until it is released, after which its space is reused.
+	 */
+	public interface Stored
+	{
+		int getLength();
+
+		void writeTo(OutputStream out) throws IOException;
+
+		void release();
+	}
+
+	private static class HeapStore extends EntryStore
+	{
+		HeapStore()
+		{
+			super("heap");
+		}
+
+		@Override
+		public Stored put(final byte[] data, final int offset, final int length)
+		{
+			final byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+			this.onStored(length);
+			return new Stored()
+			{
+				private boolean released;
+
+				@Override
+				public int getLength()
+				{
+					return copy.length;
+				}
+
+				@Override
+				public void writeTo(final OutputStream out) throws IOException
+				{
+					out.write(copy);
+				}
+
+				@Override
+				public synchronized void release()
+				{
+					if (!this.released)
+					{
+						this.released = true;
+						HeapStore.this.onReleased(copy.length);
+					}
+				}
+			};
+		}
+
+		@Override
+		public long getReservedBytes()
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Splits entries over blocks taken from a free list, blocks are only created when the free list is empty.
+	 */
+	private abstract static class BlockStore<B> extends EntryStore
+	{
+		private final Deque<B> freeBlocks = new ArrayDeque<>();
+		private final ThreadLocal<byte[]> readBuffer = ThreadLocal.withInitial(() -> new byte[BLOCK_SIZE]);
+		private long blockCount = 0;
+
+		BlockStore(final String type)
+		{
+			super(type);
+		}
+
+		abstract B newBlock(long index) throws IOException;
+
+		abstract void write(B block, byte[] data, int offset, int length) throws IOException;
+
+		abstract void read(B block, byte[] buffer, int length) throws IOException;
+
+		@Override
+		public Stored put(final byte[] data, final int offset, final int length) throws IOException
+		{
+			final List<B> blocks = this.acquire((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			try
+			{
+				for (int i = 0; i < blocks.size(); i++)
+				{
+					final int start = i * BLOCK_SIZE;
+					this.write(blocks.get(i), data, offset + start, Math.min(BLOCK_SIZE, length - start));
+				}
+			}
+			catch (IOException | RuntimeException ex)
+			{
+				this.free(blocks);
+				throw ex;
+			}
+			this.onStored(length);
+			return new Stored()
+			{
+				private boolean released;
+
+				@Override
+				public int getLength()
+				{
+					return length;
+				}
+
+				@Override
+				public void writeTo(final OutputStream out) throws IOException
+				{
+					final byte[] buffer = BlockStore.this.readBuffer.get();
+					for (int i = 0; i < blocks.size(); i++)
+					{
+						final int blockLength = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
+						BlockStore.this.read(blocks.get(i), buffer, blockLength);
+						out.write(buffer, 0, blockLength);
+					}
+				}
+
+				@Override
+				public synchronized void release()
+				{
+					if (!this.released)
+					{
+						this.released = true;
+						BlockStore.this.free(blocks);
+						BlockStore.this.onReleased(length);
+					}
+				}
+			};
+		}
+
+		@Override
+		public synchronized long getReservedBytes()
+		{
+			return this.blockCount * BLOCK_SIZE;
+		}
+
+		private synchronized List<B> acquire(final int count) throws IOException
+		{
+			final List<B> blocks = new ArrayList<>(count);
+			while (blocks.size() < count)
+			{
+				final B block = this.freeBlocks.poll();
+				blocks.add(block != null ? block : this.newBlock(this.blockCount++));
+			}
+			return blocks;
+		}
+
+		private synchronized void free(final List<B> blocks)
+		{
+			this.freeBlocks.addAll(blocks);
+		}
+	}
+
+	/**
+	 * Blocks of direct memory. They are never handed back explicitly, the garbage collector frees them once the
+	 * store is unreachable.
+	 */
+	private static class DirectStore extends BlockStore<ByteBuffer>
+	{
+		DirectStore()
+		{
+			super("offheap");
+		}
+
+		@Override
+		ByteBuffer newBlock(final long index)
+		{
+			return ByteBuffer.allocateDirect(BLOCK_SIZE);
+		}
+
+		@Override
+		void write(final ByteBuffer block, final byte[] data, final int offset, final int length)
+		{
+			final ByteBuffer view = block.duplicate();
+			view.clear();
+			view.put(data, offset, length);
+		}
+
+		@Override
+		void read(final ByteBuffer block, final byte[] buffer, final int length)
+		{
+			final ByteBuffer view = block.duplicate();
+			view.clear();
+			view.get(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Blocks of a temporary file, identified by their offset. Positional reads and writes on a FileChannel are safe
+	 * from any thread, and small rebuilds usually never leave the page cache.
+	 */
+	private static class FileStore extends BlockStore<Long>
+	{
+		private final File file;
+		private final FileChannel channel;
+
+		FileStore(final File directory) throws IOException
+		{
+			super("file");
+			directory.mkdirs();
+			this.file = File.createTempFile("entry-store-", ".tmp", directory);
+			this.file.deleteOnExit();
+			this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		@Override
+		Long newBlock(final long index)
+		{
+			return index * BLOCK_SIZE;
+		}
+
+		@Override
+		void write(final Long block, final byte[] data, final int offset, final int length) throws IOException
+		{
+			final ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+			while (source.hasRemaining())
+			{
+				this.channel.write(source, block + source.position() - offset);
+			}
+		}
+
+		@Override
+		void read(final Long block, final byte[] buffer, final int length) throws IOException
+		{
+			final ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+			while (target.hasRemaining())
+			{
+				if (this.channel.read(target, block + target.position()) < 0)
+				{
+					throw new EOFException("Unexpected end of " + this.file.getName());
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				this.channel.close();
+			}
+			finally
+			{
+				this.file.delete();
+			}
+		}
+	}
+}
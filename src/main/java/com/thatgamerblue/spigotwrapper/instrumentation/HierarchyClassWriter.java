@@ -0,0 +1,48 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * ClassWriter that answers COMPUTE_FRAMES superclass queries from a {@link ClassHierarchy} instead of loading classes
+ * through the wrapper's class loader.
+ */
+public class HierarchyClassWriter extends ClassWriter
+{
+	private final ClassHierarchy hierarchy;
+
+	public HierarchyClassWriter(final ClassHierarchy hierarchy, final int flags)
+	{
+		super(flags);
+		this.hierarchy = hierarchy;
+	}
+
+	public HierarchyClassWriter(final ClassHierarchy hierarchy, final ClassReader classReader, final int flags)
+	{
+		super(classReader, flags);
+		this.hierarchy = hierarchy;
+	}
+
+	@Override
+	protected String getCommonSuperClass(final String type1, final String type2)
+	{
+		return this.hierarchy.getCommonSuperClass(type1, type2);
+	}
+}
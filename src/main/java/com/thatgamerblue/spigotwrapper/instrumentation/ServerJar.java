@@ -19,6 +19,7 @@ package com.thatgamerblue.spigotwrapper.instrumentation;
 import com.thatgamerblue.spigotwrapper.util.Globals;
 import com.thatgamerblue.spigotwrapper.util.Logger;
 import com.thatgamerblue.spigotwrapper.util.Utils;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import org.json.simple.JSONObject;
@@ -28,47 +29,46 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.jar.JarEntry;
+import java.util.List;
 import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 
 @Getter
 public class ServerJar
 {
 	private String version;
-	private final TreeMap<String, byte[]> jarContents;
+	private final File file;
 	private final Manifest manifest;
+	@Getter(AccessLevel.NONE)
+	private volatile ServerJarIndex index;
+	@Getter(AccessLevel.NONE)
+	private volatile ClassHierarchy classHierarchy;
 
 	@SneakyThrows
-	public ServerJar(final TreeMap<String, byte[]> jarContents, final Manifest manifest, final String jarName)
+	public ServerJar(final File file, final Manifest manifest)
 	{
-		this.jarContents = jarContents;
+		this.file = file;
 		this.manifest = manifest;
-		if (!jarContents.containsKey("version.json"))
+		final byte[] bVersionContents;
+		try (final ZipArchive archive = new ZipArchive(file))
 		{
-			Globals.getLogger().fatal("%s", Logger.exceptionToString(new IllegalArgumentException(
-				String.format("JAR file %s is likely not a spigot jar, missing version.json", jarName))));
-			for (final Map.Entry<String, byte[]> entry : jarContents.entrySet())
+			final ZipArchive.Entry versionEntry = archive.getEntry("version.json");
+			if (versionEntry == null)
 			{
-				final File f = new File("dump/" + entry.getKey());
-				f.mkdirs();
-				if (!entry.getKey().endsWith("/"))
-				{
-					f.delete();
-					Files.write(f.toPath(), entry.getValue(), StandardOpenOption.CREATE_NEW);
-				}
+				Globals.getLogger().fatal("%s", Logger.exceptionToString(new IllegalArgumentException(
+					String.format("JAR file %s is likely not a spigot jar, missing version.json", file.getName()))));
+				dumpContents(archive);
+				System.exit(-1);
+				return;
 			}
-			System.exit(-1);
+			bVersionContents = archive.readBytes(versionEntry);
 		}
-		final byte[] bVersionContents = jarContents.get("version.json");
 		final String jsonString = new String(bVersionContents, StandardCharsets.UTF_8);
 		Globals.getLogger().debug("%s", jsonString);
 		try
@@ -86,37 +86,62 @@ public class ServerJar
 		}
 	}
 
-	public void createZipFile(final File destination) throws IOException
+	@SneakyThrows
+	public ServerJarIndex getIndex()
 	{
-		destination.getParentFile().mkdirs();
-		if (destination.exists())
+		if (this.index == null)
 		{
-			destination.delete();
+			synchronized (this)
+			{
+				if (this.index == null)
+				{
+					try (final ZipArchive archive = new ZipArchive(this.file))
+					{
+						this.index = ServerJarIndex.load(archive, Globals.getFingerprintStore().hash(this.file));
+					}
+				}
+			}
 		}
-		Globals.getLogger().info("Writing jar file...");
-		try (final JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(destination), this.manifest))
+		return this.index;
+	}
+
+	public ClassHierarchy getClassHierarchy()
+	{
+		if (this.classHierarchy == null)
 		{
-			for (final Map.Entry<String, byte[]> entry : this.jarContents.entrySet())
+			synchronized (this)
 			{
-				final String name = entry.getKey().replace("\\", "/");
-				if (name.equals("META-INF/MANIFEST.MF"))
+				if (this.classHierarchy == null)
 				{
-					continue;
+					this.classHierarchy = new ClassHierarchy(this.getIndex());
 				}
-				final JarEntry jarEntry = new JarEntry(name);
-				outputStream.putNextEntry(jarEntry);
-				if (!name.endsWith("/"))
+			}
+		}
+		return this.classHierarchy;
+	}
+
+	public static List<ZipArchive.Entry> getSortedEntries(final ZipArchive archive)
+	{
+		final List<ZipArchive.Entry> entries = new ArrayList<>(archive.getEntries());
+		entries.sort((a, b) -> Utils.getDirectoriesFirst().compare(a.getName(), b.getName()));
+		return entries;
+	}
+
+	private static void dumpContents(final ZipArchive archive) throws IOException
+	{
+		for (final ZipArchive.Entry entry : archive.getEntries())
+		{
+			final File f = new File("dump/" + entry.getName());
+			f.mkdirs();
+			if (!entry.getName().endsWith("/"))
+			{
+				f.delete();
+				try (final InputStream in = archive.getInputStream(entry); final OutputStream out = new FileOutputStream(f))
 				{
-					outputStream.write(entry.getValue(), 0, entry.getValue().length);
+					Utils.copy(in, out);
 				}
-				outputStream.closeEntry();
 			}
 		}
-		final File hashFile = new File("cache/plugins.sha256");
-		final String calculatedHash = Utils.hashPluginsAndServer();
-		hashFile.delete();
-		Files.write(hashFile.toPath(), calculatedHash.getBytes(), StandardOpenOption.CREATE_NEW);
-		Globals.getLogger().info("Done!");
 	}
 
 	public static class Loader
@@ -161,7 +186,7 @@ public class ServerJar
 				Globals.getLogger().fatal("Failed to get manifest from jar file%n%s", Logger.exceptionToString(ex));
 				System.exit(-1);
 			}
-			return new ServerJar(Utils.readAllEntries(this.zipFile), manifest, this.zipFile.getName());
+			return new ServerJar(this.zipFile, manifest);
 		}
 
 		public Loader zipFile(final File zipFile)
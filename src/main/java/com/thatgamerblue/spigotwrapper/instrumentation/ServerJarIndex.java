@@ -0,0 +1,336 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import lombok.Data;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Superclass/interface graph, member signatures and string constants of every class in the server jar. It is built
+ * once per jar hash and stored in cache/index/, so plugins can look classes up without parsing the jar themselves.
+ * All class names use the internal form, e.g. {@code net/minecraft/server/EntitySlime}.
+ */
+public class ServerJarIndex
+{
+	public static final File INDEX_DIRECTORY = new File("cache/index/");
+	private static final int FORMAT_VERSION = 1;
+
+	private final Map<String, ClassInfo> classes;
+	private final Map<String, List<String>> directSubtypes = new HashMap<>();
+	private final Map<String, List<String>> classesByString = new HashMap<>();
+	private final Map<String, List<String>> classesByMethodDescriptor = new HashMap<>();
+
+	private ServerJarIndex(final Map<String, ClassInfo> classes)
+	{
+		this.classes = classes;
+		for (final ClassInfo info : classes.values())
+		{
+			if (info.getSuperName() != null)
+			{
+				this.directSubtypes.computeIfAbsent(info.getSuperName(), k -> new ArrayList<>()).add(info.getName());
+			}
+			for (final String itf : info.getInterfaces())
+			{
+				this.directSubtypes.computeIfAbsent(itf, k -> new ArrayList<>()).add(info.getName());
+			}
+			for (final String string : info.getStrings())
+			{
+				this.classesByString.computeIfAbsent(string, k -> new ArrayList<>()).add(info.getName());
+			}
+			for (final MemberInfo method : info.getMethods())
+			{
+				this.classesByMethodDescriptor.computeIfAbsent(method.getDesc(), k -> new ArrayList<>()).add(info.getName());
+			}
+		}
+	}
+
+	public static ServerJarIndex load(final ZipArchive archive, final String jarHash)
+	{
+		final File indexFile = new File(INDEX_DIRECTORY, jarHash + ".idx");
+		if (indexFile.exists())
+		{
+			try
+			{
+				final ServerJarIndex index = read(indexFile);
+				Globals.getLogger().debug("Loaded index of %d classes from %s", index.classes.size(), indexFile.getName());
+				return index;
+			}
+			catch (IOException ex)
+			{
+				Globals.getLogger().warn("Failed to read %s, rebuilding it%n%s", indexFile.getName(),
+					Logger.exceptionToString(ex));
+			}
+		}
+		final ServerJarIndex index = build(archive);
+		try
+		{
+			index.write(indexFile);
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to write %s%n%s", indexFile.getName(), Logger.exceptionToString(ex));
+		}
+		return index;
+	}
+
+	public static ServerJarIndex build(final ZipArchive archive)
+	{
+		final Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
+		// a failure is only thrown once every task is done, the archive may be unmapped as soon as this returns
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		archive.getEntries().parallelStream()
+			.filter(entry -> entry.getName().endsWith(".class"))
+			.forEach(entry -> {
+				try
+				{
+					final ClassInfo info = readClassInfo(new ClassReader(archive.readBytes(entry)));
+					classes.put(info.getName(), info);
+				}
+				catch (IOException | RuntimeException ex)
+				{
+					// ClassReader rejects class files newer than ASM supports with an IllegalArgumentException
+					failure.compareAndSet(null, ex);
+				}
+			});
+		if (failure.get() instanceof IOException)
+		{
+			throw new UncheckedIOException((IOException) failure.get());
+		}
+		if (failure.get() != null)
+		{
+			throw (RuntimeException) failure.get();
+		}
+		Globals.getLogger().debug("Indexed %d classes", classes.size());
+		return new ServerJarIndex(new HashMap<>(classes));
+	}
+
+	public ClassInfo getClass(final String internalName)
+	{
+		return this.classes.get(internalName);
+	}
+
+	public Collection<ClassInfo> getClasses()
+	{
+		return Collections.unmodifiableCollection(this.classes.values());
+	}
+
+	public List<String> getDirectSubtypes(final String internalName)
+	{
+		return this.directSubtypes.getOrDefault(internalName, Collections.emptyList());
+	}
+
+	public List<String> getClassesWithString(final String constant)
+	{
+		return this.classesByString.getOrDefault(constant, Collections.emptyList());
+	}
+
+	public List<String> getClassesWithMethodDescriptor(final String desc)
+	{
+		return this.classesByMethodDescriptor.getOrDefault(desc, Collections.emptyList());
+	}
+
+	private static ClassInfo readClassInfo(final ClassReader reader)
+	{
+		final List<MemberInfo> fields = new ArrayList<>();
+		final List<MemberInfo> methods = new ArrayList<>();
+		reader.accept(new ClassVisitor(Opcodes.ASM7)
+		{
+			@Override
+			public FieldVisitor visitField(final int access, final String name, final String descriptor,
+				final String signature, final Object value)
+			{
+				fields.add(new MemberInfo(access, name, descriptor));
+				return null;
+			}
+
+			@Override
+			public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+				final String signature, final String[] exceptions)
+			{
+				methods.add(new MemberInfo(access, name, descriptor));
+				return null;
+			}
+		}, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		// string constants are read straight from the constant pool so method bodies never have to be visited
+		final List<String> strings = new ArrayList<>();
+		final char[] buffer = new char[reader.getMaxStringLength()];
+		for (int i = 1; i < reader.getItemCount(); i++)
+		{
+			final int offset = reader.getItem(i);
+			if (offset > 0 && reader.readByte(offset - 1) == 8)
+			{
+				strings.add(reader.readUTF8(offset, buffer));
+			}
+		}
+		return new ClassInfo(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(), reader.getAccess(),
+			fields, methods, strings);
+	}
+
+	private static ServerJarIndex read(final File indexFile) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile), 1 << 16))))
+		{
+			if (in.readInt() != FORMAT_VERSION)
+			{
+				throw new IOException("Unsupported index version");
+			}
+			final int classCount = in.readInt();
+			final Map<String, ClassInfo> classes = new HashMap<>(classCount * 2);
+			for (int i = 0; i < classCount; i++)
+			{
+				final String name = in.readUTF();
+				final String superName = in.readBoolean() ? in.readUTF() : null;
+				final int access = in.readInt();
+				final String[] interfaces = new String[in.readUnsignedShort()];
+				for (int j = 0; j < interfaces.length; j++)
+				{
+					interfaces[j] = in.readUTF();
+				}
+				final List<MemberInfo> fields = readMembers(in);
+				final List<MemberInfo> methods = readMembers(in);
+				final int stringCount = in.readInt();
+				final List<String> strings = new ArrayList<>(stringCount);
+				for (int j = 0; j < stringCount; j++)
+				{
+					strings.add(in.readUTF());
+				}
+				classes.put(name, new ClassInfo(name, superName, interfaces, access, fields, methods, strings));
+			}
+			return new ServerJarIndex(classes);
+		}
+	}
+
+	private static List<MemberInfo> readMembers(final DataInputStream in) throws IOException
+	{
+		final int count = in.readInt();
+		final List<MemberInfo> members = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			members.add(new MemberInfo(in.readInt(), in.readUTF(), in.readUTF()));
+		}
+		return members;
+	}
+
+	private void write(final File indexFile) throws IOException
+	{
+		INDEX_DIRECTORY.mkdirs();
+		final File[] oldIndexes = INDEX_DIRECTORY.listFiles((dir, name) -> name.endsWith(".idx"));
+		if (oldIndexes != null)
+		{
+			for (final File oldIndex : oldIndexes)
+			{
+				oldIndex.delete();
+			}
+		}
+		final File tempFile = new File(indexFile.getPath() + ".tmp");
+		try (final DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile), 1 << 16))))
+		{
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(this.classes.size());
+			for (final ClassInfo info : this.classes.values())
+			{
+				out.writeUTF(info.getName());
+				out.writeBoolean(info.getSuperName() != null);
+				if (info.getSuperName() != null)
+				{
+					out.writeUTF(info.getSuperName());
+				}
+				out.writeInt(info.getAccess());
+				out.writeShort(info.getInterfaces().length);
+				for (final String itf : info.getInterfaces())
+				{
+					out.writeUTF(itf);
+				}
+				writeMembers(out, info.getFields());
+				writeMembers(out, info.getMethods());
+				out.writeInt(info.getStrings().size());
+				for (final String string : info.getStrings())
+				{
+					out.writeUTF(string);
+				}
+			}
+		}
+		Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void writeMembers(final DataOutputStream out, final List<MemberInfo> members) throws IOException
+	{
+		out.writeInt(members.size());
+		for (final MemberInfo member : members)
+		{
+			out.writeInt(member.getAccess());
+			out.writeUTF(member.getName());
+			out.writeUTF(member.getDesc());
+		}
+	}
+
+	@Data
+	public static class ClassInfo
+	{
+		private final String name;
+		private final String superName;
+		private final String[] interfaces;
+		private final int access;
+		private final List<MemberInfo> fields;
+		private final List<MemberInfo> methods;
+		private final List<String> strings;
+
+		public boolean isInterface()
+		{
+			return (this.access & Opcodes.ACC_INTERFACE) != 0;
+		}
+	}
+
+	@Data
+	public static class MemberInfo
+	{
+		private final int access;
+		private final String name;
+		private final String desc;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A directory shared between servers, holding augmented jars named by the hash of the plugins and server jar they
+ * were built from. The first wrapper to need a jar builds it while holding the hash's lock file, everyone else waits
+ * for the lock and then hardlinks the finished jar into their own cache.
+ */
+public class SharedCache
+{
+	/**
+	 * Times in a row a retired lock file may turn up before it is taken to be one that couldn't be deleted
+	 */
+	private static final int RETIRED_ATTEMPTS = 3;
+
+	private final File directory;
+
+	public SharedCache(final File directory)
+	{
+		this.directory = directory;
+		this.directory.mkdirs();
+	}
+
+	/**
+	 * Blocks until no other wrapper is building the jar for this hash
+	 */
+	public Lock lock(final String hash) throws IOException
+	{
+		final File lockFile = new File(this.directory, hash + ".lock");
+		for (int attempt = 1; ; attempt++)
+		{
+			final FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try
+			{
+				FileLock lock = channel.tryLock();
+				if (lock == null)
+				{
+					Globals.getLogger().info("Waiting for another server to finish building the shared jar");
+					lock = channel.lock();
+				}
+				// the previous holder retired this file and unlinked it, whoever opens the path now gets a new one
+				if (channel.size() == 0)
+				{
+					return new Lock(hash, lockFile, channel, lock);
+				}
+				if (attempt >= RETIRED_ATTEMPTS)
+				{
+					// the same retired file keeps coming back, so it is still at the path and everyone locks it
+					Globals.getLogger().debug("Reusing retired lock file %s", lockFile.getName());
+					channel.truncate(0);
+					return new Lock(hash, lockFile, channel, lock);
+				}
+				lock.release();
+				channel.close();
+			}
+			catch (IOException | RuntimeException ex)
+			{
+				channel.close();
+				throw ex;
+			}
+		}
+	}
+
+	private static void link(final File source, final File destination) throws IOException
+	{
+		final File tempFile = new File(destination.getPath() + ".link");
+		tempFile.delete();
+		try
+		{
+			Files.createLink(tempFile.toPath(), source.toPath());
+		}
+		catch (IOException | UnsupportedOperationException ex)
+		{
+			// different filesystem, or one without hardlinks
+			Globals.getLogger().debug("Couldn't hardlink %s, copying it instead%n%s", source.getName(),
+				Logger.exceptionToString(ex));
+			Files.copy(source.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Held while a jar is looked up or built, the jar for the lock's hash may only be touched through it
+	 */
+	public class Lock implements Closeable
+	{
+		private final String hash;
+		private final File lockFile;
+		private final FileChannel channel;
+		private final FileLock lock;
+
+		private Lock(final String hash, final File lockFile, final FileChannel channel, final FileLock lock)
+		{
+			this.hash = hash;
+			this.lockFile = lockFile;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		/**
+		 * Links the shared jar for this hash to the destination
+		 *
+		 * @return false if nobody has built it yet
+		 */
+		public boolean linkInto(final File destination) throws IOException
+		{
+			final File sharedJar = this.getSharedJar();
+			if (!sharedJar.isFile())
+			{
+				return false;
+			}
+			link(sharedJar, destination);
+			return true;
+		}
+
+		/**
+		 * Makes a finished jar available to other servers under this hash
+		 */
+		public void publish(final File builtJar) throws IOException
+		{
+			final File tempJar = new File(SharedCache.this.directory, this.hash + ".jar.tmp");
+			link(builtJar, tempJar);
+			// every server shares the same inode, nobody gets to write to it
+			tempJar.setWritable(false, false);
+			Files.move(tempJar.toPath(), this.getSharedJar().toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/**
+		 * Removes the shared jar for this hash, so the next lookup builds it again
+		 */
+		public void evict()
+		{
+			final File sharedJar = this.getSharedJar();
+			if (sharedJar.exists() && !sharedJar.delete())
+			{
+				Globals.getLogger().warn("Failed to remove %s from the shared cache", sharedJar.getName());
+			}
+		}
+
+		private File getSharedJar()
+		{
+			return new File(SharedCache.this.directory, this.hash + ".jar");
+		}
+
+		/**
+		 * Once the jar exists nobody has to wait for this hash any more, so the lock file is removed instead of
+		 * piling up next to every jar ever built
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				if (this.getSharedJar().isFile())
+				{
+					if (this.lockFile.delete())
+					{
+						// anyone already waiting on the unlinked file sees the mark and opens the path again
+						this.channel.write(ByteBuffer.wrap(new byte[] { 1 }), 0);
+					}
+					else
+					{
+						Globals.getLogger().debug("Couldn't remove %s, leaving it for the next lock",
+							this.lockFile.getName());
+					}
+				}
+			}
+			finally
+			{
+				this.lock.release();
+				this.channel.close();
+			}
+		}
+	}
+}
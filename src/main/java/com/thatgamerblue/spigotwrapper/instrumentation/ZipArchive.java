@@ -0,0 +1,535 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import lombok.Getter;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip reader that exposes the stored (compressed) bytes of each entry, so entries can be copied into
+ * another archive without being inflated and deflated again.
+ * <p>
+ * The archive is memory mapped rather than read through a stream, so entries are slices of the mapping and only
+ * end up on the heap once something asks for their contents.
+ */
+public class ZipArchive implements Closeable
+{
+	static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	static final int END_SIGNATURE = 0x06054b50;
+	static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	static final int METHOD_STORED = 0;
+	static final int METHOD_DEFLATED = 8;
+	private static final int COPY_CHUNK = 8192;
+	private static final Unmapper UNMAPPER = Unmapper.create();
+
+	@Getter
+	private final File file;
+	private volatile MappedByteBuffer mapped;
+	@Getter
+	private final List<Entry> entries;
+	private final Map<String, Entry> entriesByName;
+
+	public ZipArchive(final File file) throws IOException
+	{
+		this.file = file;
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				throw new ZipException(file.getName() + " is too large to be mapped");
+			}
+			// the mapping stays valid after the channel is closed
+			this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try
+		{
+			this.entries = Collections.unmodifiableList(this.readCentralDirectory());
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			this.close();
+			throw ex;
+		}
+		this.entriesByName = new HashMap<>(this.entries.size() * 2);
+		for (final Entry entry : this.entries)
+		{
+			this.entriesByName.put(entry.getName(), entry);
+		}
+	}
+
+	public Entry getEntry(final String name)
+	{
+		return this.entriesByName.get(name);
+	}
+
+	/**
+	 * @return the entry's data exactly as it is stored in the archive, as a read only view of the mapping
+	 */
+	public ByteBuffer getRawData(final Entry entry) throws IOException
+	{
+		return this.slice(this.getDataOffset(entry), entry.getCompressedSize());
+	}
+
+	/**
+	 * @return the entry's uncompressed data, a view of the mapping for stored entries and inflated on the heap for
+	 * everything else
+	 */
+	public ByteBuffer getData(final Entry entry) throws IOException
+	{
+		if (entry.getMethod() == METHOD_STORED)
+		{
+			return this.getRawData(entry);
+		}
+		return ByteBuffer.wrap(this.readBytes(entry));
+	}
+
+	public InputStream getInputStream(final Entry entry) throws IOException
+	{
+		final InputStream raw = new BufferInputStream(this.getRawData(entry));
+		switch (entry.getMethod())
+		{
+			case METHOD_STORED:
+				return raw;
+			case METHOD_DEFLATED:
+				return new InflatingInputStream(raw);
+			default:
+				throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+		}
+	}
+
+	public byte[] readBytes(final Entry entry) throws IOException
+	{
+		if (entry.getSize() > Integer.MAX_VALUE)
+		{
+			throw new ZipException("Entry " + entry.getName() + " is too large to be read into memory");
+		}
+		final ByteBuffer raw = this.getRawData(entry);
+		final byte[] data = new byte[(int) entry.getSize()];
+		switch (entry.getMethod())
+		{
+			case METHOD_STORED:
+				if (raw.remaining() != data.length)
+				{
+					throw new ZipException("Stored entry " + entry.getName() + " has mismatched sizes");
+				}
+				raw.get(data);
+				return data;
+			case METHOD_DEFLATED:
+				inflate(entry, raw, data);
+				return data;
+			default:
+				throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+		}
+	}
+
+	public void copyRawData(final Entry entry, final OutputStream out) throws IOException
+	{
+		final ByteBuffer raw = this.getRawData(entry);
+		final byte[] chunk = new byte[Math.min(COPY_CHUNK, Math.max(1, raw.remaining()))];
+		while (raw.hasRemaining())
+		{
+			final int length = Math.min(chunk.length, raw.remaining());
+			raw.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	private static void inflate(final Entry entry, final ByteBuffer raw, final byte[] data) throws IOException
+	{
+		// inflating straight into an array of the declared size saves the copy a growing buffer would need
+		final Inflater inflater = new Inflater(true);
+		try
+		{
+			final byte[] input = new byte[Math.min(COPY_CHUNK, Math.max(1, raw.remaining()))];
+			final byte[] overflow = new byte[1];
+			boolean paddingAdded = false;
+			int written = 0;
+			while (!inflater.finished())
+			{
+				if (inflater.needsInput())
+				{
+					if (raw.hasRemaining())
+					{
+						final int length = Math.min(input.length, raw.remaining());
+						raw.get(input, 0, length);
+						inflater.setInput(input, 0, length);
+					}
+					else if (!paddingAdded)
+					{
+						// raw deflate streams may need one trailing byte that isn't part of the entry
+						paddingAdded = true;
+						inflater.setInput(overflow, 0, 1);
+					}
+					else
+					{
+						throw new ZipException("Unexpected end of entry " + entry.getName());
+					}
+				}
+				if (written < data.length)
+				{
+					written += inflater.inflate(data, written, data.length - written);
+				}
+				else if (inflater.inflate(overflow) > 0)
+				{
+					throw new ZipException("Entry " + entry.getName() + " is larger than its declared size");
+				}
+				if (inflater.needsDictionary())
+				{
+					throw new ZipException("Entry " + entry.getName() + " needs a preset dictionary");
+				}
+			}
+			if (written != data.length)
+			{
+				throw new ZipException("Entry " + entry.getName() + " is smaller than its declared size");
+			}
+		}
+		catch (DataFormatException ex)
+		{
+			throw new ZipException("Invalid deflate data in " + entry.getName() + ": " + ex.getMessage());
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	private long getDataOffset(final Entry entry) throws IOException
+	{
+		long dataOffset = entry.dataOffset;
+		if (dataOffset < 0)
+		{
+			final ByteBuffer header = this.slice(entry.getLocalHeaderOffset(), 30);
+			if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+			{
+				throw new ZipException("Invalid local header for " + entry.getName());
+			}
+			dataOffset = entry.getLocalHeaderOffset() + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+			entry.dataOffset = dataOffset;
+		}
+		return dataOffset;
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException
+	{
+		final long fileSize = this.getMapping().capacity();
+		final int tailSize = (int) Math.min(fileSize, 0xFFFF + 22);
+		final ByteBuffer tail = this.slice(fileSize - tailSize, tailSize);
+		int endOffset = -1;
+		for (int i = tailSize - 22; i >= 0; i--)
+		{
+			if (tail.getInt(i) == END_SIGNATURE)
+			{
+				endOffset = i;
+				break;
+			}
+		}
+		if (endOffset < 0)
+		{
+			throw new ZipException("End of central directory not found in " + this.file.getName());
+		}
+		long entryCount = tail.getShort(endOffset + 10) & 0xFFFF;
+		long directorySize = tail.getInt(endOffset + 12) & 0xFFFFFFFFL;
+		long directoryOffset = tail.getInt(endOffset + 16) & 0xFFFFFFFFL;
+		if (endOffset >= 20 && tail.getInt(endOffset - 20) == ZIP64_LOCATOR_SIGNATURE)
+		{
+			final ByteBuffer zip64End = this.slice(tail.getLong(endOffset - 20 + 8), 56);
+			if (zip64End.getInt(0) != ZIP64_END_SIGNATURE)
+			{
+				throw new ZipException("Invalid zip64 end of central directory in " + this.file.getName());
+			}
+			entryCount = zip64End.getLong(32);
+			directorySize = zip64End.getLong(40);
+			directoryOffset = zip64End.getLong(48);
+		}
+		if (directorySize > Integer.MAX_VALUE)
+		{
+			throw new ZipException("Central directory too large in " + this.file.getName());
+		}
+		final ByteBuffer directory = this.slice(directoryOffset, (int) directorySize);
+		final List<Entry> result = new ArrayList<>((int) Math.min(entryCount, Integer.MAX_VALUE));
+		int pos = 0;
+		for (long i = 0; i < entryCount; i++)
+		{
+			if (directory.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+			{
+				throw new ZipException("Invalid central directory header in " + this.file.getName());
+			}
+			final int flags = directory.getShort(pos + 8) & 0xFFFF;
+			final int method = directory.getShort(pos + 10) & 0xFFFF;
+			final long dosTime = directory.getInt(pos + 12) & 0xFFFFFFFFL;
+			final long crc = directory.getInt(pos + 16) & 0xFFFFFFFFL;
+			long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+			long size = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+			final int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+			final int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+			final int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+			long localHeaderOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+			final byte[] nameBytes = new byte[nameLength];
+			directory.position(pos + 46);
+			directory.get(nameBytes);
+			int extraPos = pos + 46 + nameLength;
+			final int extraEnd = extraPos + extraLength;
+			while (extraPos + 4 <= extraEnd)
+			{
+				final int headerId = directory.getShort(extraPos) & 0xFFFF;
+				final int dataSize = directory.getShort(extraPos + 2) & 0xFFFF;
+				if (headerId == 0x0001)
+				{
+					int fieldPos = extraPos + 4;
+					if (size == 0xFFFFFFFFL)
+					{
+						size = directory.getLong(fieldPos);
+						fieldPos += 8;
+					}
+					if (compressedSize == 0xFFFFFFFFL)
+					{
+						compressedSize = directory.getLong(fieldPos);
+						fieldPos += 8;
+					}
+					if (localHeaderOffset == 0xFFFFFFFFL)
+					{
+						localHeaderOffset = directory.getLong(fieldPos);
+					}
+				}
+				extraPos += 4 + dataSize;
+			}
+			if ((flags & 1) != 0)
+			{
+				throw new ZipException("Encrypted entries are not supported");
+			}
+			result.add(new Entry(new String(nameBytes, StandardCharsets.UTF_8), method, dosTime, crc, compressedSize,
+				size, localHeaderOffset));
+			pos = extraEnd + commentLength;
+		}
+		return result;
+	}
+
+	private ByteBuffer slice(final long position, final long length) throws IOException
+	{
+		final MappedByteBuffer mapping = this.getMapping();
+		if (position < 0 || length < 0 || position + length > mapping.capacity())
+		{
+			throw new ZipException("Unexpected end of " + this.file.getName());
+		}
+		// duplicate so concurrent readers never share a position, then slice so offsets start at zero
+		final ByteBuffer view = mapping.asReadOnlyBuffer();
+		view.limit((int) (position + length));
+		view.position((int) position);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private MappedByteBuffer getMapping() throws IOException
+	{
+		final MappedByteBuffer mapping = this.mapped;
+		if (mapping == null)
+		{
+			throw new ZipException(this.file.getName() + " has been closed");
+		}
+		return mapping;
+	}
+
+	/**
+	 * Forgets the mapping without releasing it, for when reads may still be running. The garbage collector unmaps it
+	 * once the last slice is gone, and {@link #close()} does nothing afterwards.
+	 */
+	public void detach()
+	{
+		this.mapped = null;
+	}
+
+	/**
+	 * Releases the mapping straight away instead of waiting for it to be garbage collected, which keeps the file
+	 * from staying locked on Windows. No reads may be in progress when this is called.
+	 */
+	@Override
+	public void close()
+	{
+		final MappedByteBuffer mapping = this.mapped;
+		this.mapped = null;
+		if (mapping != null)
+		{
+			UNMAPPER.unmap(mapping);
+		}
+	}
+
+	@Getter
+	public static class Entry
+	{
+		private final String name;
+		private final int method;
+		private final long dosTime;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long localHeaderOffset;
+		private volatile long dataOffset = -1;
+
+		Entry(final String name, final int method, final long dosTime, final long crc, final long compressedSize,
+			final long size, final long localHeaderOffset)
+		{
+			this.name = name;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		public boolean isDirectory()
+		{
+			return this.name.endsWith("/");
+		}
+	}
+
+	private static class BufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		BufferInputStream(final ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+		{
+			if (!this.buffer.hasRemaining())
+			{
+				return -1;
+			}
+			final int length = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, length);
+			return length;
+		}
+
+		@Override
+		public int available()
+		{
+			return this.buffer.remaining();
+		}
+	}
+
+	private static class InflatingInputStream extends InflaterInputStream
+	{
+		InflatingInputStream(final InputStream in)
+		{
+			// raw deflate streams may need one trailing byte that isn't part of the entry
+			super(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])), new Inflater(true), 8192);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			super.close();
+			this.inf.end();
+		}
+	}
+
+	/**
+	 * Mapped buffers have no public way to be released, so this goes through Unsafe.invokeCleaner on java 9+ and the
+	 * buffer's cleaner on java 8. If neither is reachable the mapping is left to the garbage collector.
+	 */
+	private interface Unmapper
+	{
+		void unmap(MappedByteBuffer buffer);
+
+		static Unmapper create()
+		{
+			try
+			{
+				final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				final Object unsafe = theUnsafe.get(null);
+				return buffer -> invoke(invokeCleaner, unsafe, buffer);
+			}
+			catch (ReflectiveOperationException | RuntimeException ignored)
+			{
+				// java 8, fall through to the buffer's own cleaner
+			}
+			try
+			{
+				final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+				final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+				return buffer -> {
+					final Object bufferCleaner = invoke(cleaner, buffer);
+					if (bufferCleaner != null)
+					{
+						invoke(clean, bufferCleaner);
+					}
+				};
+			}
+			catch (ReflectiveOperationException | RuntimeException ex)
+			{
+				Globals.getLogger().debug("Mapped archives will be released by the garbage collector%n%s",
+					Logger.exceptionToString(ex));
+				return buffer -> {
+				};
+			}
+		}
+
+		static Object invoke(final Method method, final Object target, final Object... args)
+		{
+			try
+			{
+				return method.invoke(target, args);
+			}
+			catch (ReflectiveOperationException | RuntimeException ex)
+			{
+				Globals.getLogger().debug("Failed to release mapped archive%n%s", Logger.exceptionToString(ex));
+				return null;
+			}
+		}
+	}
+}
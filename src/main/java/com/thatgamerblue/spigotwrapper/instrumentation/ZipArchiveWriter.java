@@ -0,0 +1,200 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.instrumentation;
+
+import lombok.Data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Zip writer counterpart to {@link ZipArchive}. Entries are either copied raw from another archive or written from
+ * data that was deflated ahead of time with {@link #deflate(byte[], EntryStore)}, which lets worker threads do the compression.
+ */
+public class ZipArchiveWriter implements Closeable
+{
+	private static final int VERSION_NEEDED = 20;
+	private static final int VERSION_NEEDED_ZIP64 = 45;
+	private static final int FLAG_UTF8 = 1 << 11;
+	private static final ThreadLocal<byte[]> DEFLATE_BUFFER = ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+	private final OutputStream out;
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+	private long offset = 0;
+	private long entryCount = 0;
+
+	public ZipArchiveWriter(final File destination) throws IOException
+	{
+		this.out = new BufferedOutputStream(new FileOutputStream(destination), 1 << 16);
+	}
+
+	public static Deflated deflate(final byte[] data, final EntryStore store) throws IOException
+	{
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try
+		{
+			deflater.setInput(data);
+			deflater.finish();
+			// each worker reuses one buffer, the only copy made per entry is the one that goes into the store
+			byte[] buffer = DEFLATE_BUFFER.get();
+			int length = 0;
+			while (!deflater.finished())
+			{
+				if (length == buffer.length)
+				{
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					DEFLATE_BUFFER.set(buffer);
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			return new Deflated(crc.getValue(), data.length, store.put(buffer, 0, length));
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	public void copyEntry(final ZipArchive source, final ZipArchive.Entry entry) throws IOException
+	{
+		this.writeLocalHeader(entry.getName(), entry.getMethod(), entry.getDosTime(), entry.getCrc(),
+			entry.getCompressedSize(), entry.getSize());
+		source.copyRawData(entry, this.out);
+		this.offset += entry.getCompressedSize();
+	}
+
+	public void writeEntry(final String name, final long dosTime, final Deflated data) throws IOException
+	{
+		this.writeLocalHeader(name, ZipArchive.METHOD_DEFLATED, dosTime, data.getCrc(),
+			data.getCompressed().getLength(), data.getSize());
+		data.getCompressed().writeTo(this.out);
+		this.offset += data.getCompressed().getLength();
+	}
+
+	private void writeLocalHeader(final String name, final int method, final long dosTime, final long crc,
+		final long compressedSize, final long size) throws IOException
+	{
+		if (compressedSize >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL || this.offset >= 0xFFFFFFFFL)
+		{
+			throw new ZipException("Entry " + name + " is too large to be written");
+		}
+		final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer local = ByteBuffer.allocate(30 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		local.putInt(ZipArchive.LOCAL_HEADER_SIGNATURE);
+		local.putShort((short) VERSION_NEEDED);
+		local.putShort((short) FLAG_UTF8);
+		local.putShort((short) method);
+		local.putInt((int) dosTime);
+		local.putInt((int) crc);
+		local.putInt((int) compressedSize);
+		local.putInt((int) size);
+		local.putShort((short) nameBytes.length);
+		local.putShort((short) 0);
+		local.put(nameBytes);
+		final ByteBuffer central = ByteBuffer.allocate(46 + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+		central.putInt(ZipArchive.CENTRAL_HEADER_SIGNATURE);
+		central.putShort((short) VERSION_NEEDED);
+		central.putShort((short) VERSION_NEEDED);
+		central.putShort((short) FLAG_UTF8);
+		central.putShort((short) method);
+		central.putInt((int) dosTime);
+		central.putInt((int) crc);
+		central.putInt((int) compressedSize);
+		central.putInt((int) size);
+		central.putShort((short) nameBytes.length);
+		central.putShort((short) 0);
+		central.putShort((short) 0);
+		central.putShort((short) 0);
+		central.putShort((short) 0);
+		central.putInt(0);
+		central.putInt((int) this.offset);
+		central.put(nameBytes);
+		this.centralDirectory.write(central.array());
+		this.out.write(local.array());
+		this.offset += local.capacity();
+		this.entryCount++;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			final long directoryOffset = this.offset;
+			final long directorySize = this.centralDirectory.size();
+			this.centralDirectory.writeTo(this.out);
+			final boolean zip64 = this.entryCount >= 0xFFFF || directoryOffset >= 0xFFFFFFFFL;
+			if (zip64)
+			{
+				final long zip64EndOffset = directoryOffset + directorySize;
+				final ByteBuffer zip64End = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+				zip64End.putInt(ZipArchive.ZIP64_END_SIGNATURE);
+				zip64End.putLong(44);
+				zip64End.putShort((short) VERSION_NEEDED_ZIP64);
+				zip64End.putShort((short) VERSION_NEEDED_ZIP64);
+				zip64End.putInt(0);
+				zip64End.putInt(0);
+				zip64End.putLong(this.entryCount);
+				zip64End.putLong(this.entryCount);
+				zip64End.putLong(directorySize);
+				zip64End.putLong(directoryOffset);
+				zip64End.putInt(ZipArchive.ZIP64_LOCATOR_SIGNATURE);
+				zip64End.putInt(0);
+				zip64End.putLong(zip64EndOffset);
+				zip64End.putInt(1);
+				this.out.write(zip64End.array());
+			}
+			final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+			end.putInt(ZipArchive.END_SIGNATURE);
+			end.putShort((short) 0);
+			end.putShort((short) 0);
+			end.putShort((short) (zip64 ? 0xFFFF : this.entryCount));
+			end.putShort((short) (zip64 ? 0xFFFF : this.entryCount));
+			end.putInt((int) (zip64 ? 0xFFFFFFFFL : directorySize));
+			end.putInt((int) (zip64 ? 0xFFFFFFFFL : directoryOffset));
+			end.putShort((short) 0);
+			this.out.write(end.array());
+		}
+		finally
+		{
+			this.out.close();
+		}
+	}
+
+	@Data
+	public static class Deflated
+	{
+		private final long crc;
+		private final long size;
+		private final EntryStore.Stored compressed;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Plugin that works on a parsed {@link ClassNode}. When several of these target the same class the PluginManager
+ * parses it once, passes the same node through each of them and only writes bytecode once at the end.
+ */
+public abstract class ClassNodePlugin extends Plugin
+{
+	public static final int UNCHANGED = 0;
+	public static final int CHANGED = 1;
+	/**
+	 * Branches, handlers or locals were changed, so stack map frames have to be recomputed when writing.
+	 */
+	public static final int CHANGED_CONTROL_FLOW = 3;
+
+	/**
+	 * @return {@link #UNCHANGED}, {@link #CHANGED} or {@link #CHANGED_CONTROL_FLOW}
+	 */
+	public abstract int transform(final ClassNode classNode, final String className);
+
+	@Override
+	public byte[] onClassLoaded(final byte[] bytes, final String className)
+	{
+		final ClassReader reader = new ClassReader(bytes);
+		final ClassNode classNode = new ClassNode();
+		reader.accept(classNode, 0);
+		final int changes = this.transform(classNode, className);
+		if (changes == UNCHANGED)
+		{
+			return bytes;
+		}
+		final ClassWriter writer = this.newClassWriter(reader, PluginManager.getWriterFlags(changes));
+		classNode.accept(writer);
+		return writer.toByteArray();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+import com.thatgamerblue.spigotwrapper.util.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The manifest.json text of each plugin jar, keyed by the jar's SHA-256, so unchanged plugins don't have to be
+ * opened at all. Only the manifests of jars seen during this run are kept when saving.
+ */
+public class ManifestCache
+{
+	public static final File CACHE_FILE = new File("cache/plugin-manifests.json");
+
+	private final Map<String, String> previous = new ConcurrentHashMap<>();
+	private final Map<String, String> current = new ConcurrentHashMap<>();
+
+	public static ManifestCache load()
+	{
+		final ManifestCache cache = new ManifestCache();
+		if (!CACHE_FILE.exists())
+		{
+			return cache;
+		}
+		try (final Reader reader = Files.newBufferedReader(CACHE_FILE.toPath(), StandardCharsets.UTF_8))
+		{
+			final JSONObject root = (JSONObject) new JSONParser().parse(reader);
+			for (final Object entry : root.entrySet())
+			{
+				final Map.Entry<?, ?> keyValue = (Map.Entry<?, ?>) entry;
+				cache.previous.put(String.valueOf(keyValue.getKey()), String.valueOf(keyValue.getValue()));
+			}
+		}
+		catch (IOException | ParseException | ClassCastException ex)
+		{
+			Globals.getLogger().warn("Failed to read plugin manifest cache, ignoring it%n%s", Logger.exceptionToString(ex));
+		}
+		return cache;
+	}
+
+	public String get(final String fileHash)
+	{
+		final String manifest = this.previous.get(fileHash);
+		if (manifest != null)
+		{
+			this.current.put(fileHash, manifest);
+		}
+		return manifest;
+	}
+
+	public void put(final String fileHash, final String manifest)
+	{
+		this.current.put(fileHash, manifest);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void save()
+	{
+		if (this.current.equals(this.previous))
+		{
+			return;
+		}
+		CACHE_FILE.getAbsoluteFile().getParentFile().mkdirs();
+		final File tempFile = new File(CACHE_FILE.getPath() + ".tmp");
+		try
+		{
+			try (final Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8))
+			{
+				new JSONObject(this.current).writeJSONString(writer);
+			}
+			Files.move(tempFile.toPath(), CACHE_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to save plugin manifest cache%n%s", Logger.exceptionToString(ex));
+		}
+	}
+}
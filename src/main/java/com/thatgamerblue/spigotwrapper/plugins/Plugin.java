@@ -17,16 +17,35 @@
 
 package com.thatgamerblue.spigotwrapper.plugins;
 
+import com.thatgamerblue.spigotwrapper.instrumentation.HierarchyClassWriter;
+import com.thatgamerblue.spigotwrapper.instrumentation.ServerJar;
 import lombok.Getter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
 
 public abstract class Plugin
 {
 
 	@Getter
 	private PluginManifest manifest;
+	@Getter
+	private ServerJar serverJar;
 
 	public abstract void init();
 
 	public abstract byte[] onClassLoaded(final byte[] p0, final String p1);
 
+	/**
+	 * Creates a ClassWriter whose frame computation uses the server jar's class hierarchy, so COMPUTE_FRAMES never
+	 * has to load server classes.
+	 */
+	protected ClassWriter newClassWriter(final ClassReader classReader, final int flags)
+	{
+		if ((flags & ClassWriter.COMPUTE_FRAMES) == 0)
+		{
+			return new ClassWriter(classReader, flags);
+		}
+		return new HierarchyClassWriter(this.serverJar.getClassHierarchy(), classReader, flags);
+	}
+
 }
@@ -0,0 +1,40 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordering information from manifest.json. "depends" names plugins that must be present and run first, "after" and
+ * "before" only order against plugins that are present. "reads" and "writes" are class names or globs (same syntax
+ * as targets); a plugin that reads what another writes runs after it unless told otherwise.
+ */
+@Data
+public class PluginDependencies
+{
+	public static final PluginDependencies NONE = new PluginDependencies(Collections.emptyList(),
+		Collections.emptyList(), Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+
+	private final List<String> depends;
+	private final List<String> after;
+	private final List<String> before;
+	private final List<String> reads;
+	private final List<String> writes;
+}
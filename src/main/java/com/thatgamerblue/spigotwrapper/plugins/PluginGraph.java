@@ -0,0 +1,224 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import com.thatgamerblue.spigotwrapper.util.Globals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Orders plugins by their {@link PluginDependencies}. Plugins with missing hard dependencies or in a cycle are
+ * dropped. Among plugins that are free to run, the one with the smallest name goes first, so the order (and with it
+ * every class cache key) only depends on the set of plugins. Stages group plugins by their depth in the graph;
+ * plugins within a stage don't depend on each other.
+ */
+public class PluginGraph
+{
+	private final Map<String, PluginManifest> plugins = new TreeMap<>();
+	private final Map<String, Set<String>> successors = new HashMap<>();
+	private final List<List<PluginManifest>> stages = new ArrayList<>();
+	private final List<PluginManifest> order = new ArrayList<>();
+
+	public PluginGraph(final Collection<PluginManifest> manifests)
+	{
+		for (final PluginManifest manifest : manifests)
+		{
+			if (manifest.getName() == null)
+			{
+				Globals.getLogger().fatal("Plugin %s has no name. Skipping.", manifest.getMainClass());
+			}
+			else if (this.plugins.putIfAbsent(manifest.getName(), manifest) != null)
+			{
+				Globals.getLogger().fatal("Found two plugins named %s, skipping the second one", manifest.getName());
+			}
+		}
+		this.removeMissingDependencies();
+		for (final String name : this.plugins.keySet())
+		{
+			this.successors.put(name, new TreeSet<>());
+		}
+		for (final PluginManifest manifest : this.plugins.values())
+		{
+			final PluginDependencies dependencies = manifest.getDependencies();
+			for (final String dependency : dependencies.getDepends())
+			{
+				this.addEdge(dependency, manifest.getName());
+			}
+			for (final String after : dependencies.getAfter())
+			{
+				this.addEdge(after, manifest.getName());
+			}
+			for (final String before : dependencies.getBefore())
+			{
+				this.addEdge(manifest.getName(), before);
+			}
+		}
+		// implicit edges only where they don't contradict the declared order
+		for (final PluginManifest writer : this.plugins.values())
+		{
+			for (final PluginManifest reader : this.plugins.values())
+			{
+				if (writer != reader && overlaps(writer.getDependencies().getWrites(), reader.getDependencies().getReads())
+					&& !this.reaches(reader.getName(), writer.getName()))
+				{
+					this.addEdge(writer.getName(), reader.getName());
+				}
+			}
+		}
+		this.sort();
+	}
+
+	public List<PluginManifest> getOrder()
+	{
+		return this.order;
+	}
+
+	public List<List<PluginManifest>> getStages()
+	{
+		return this.stages;
+	}
+
+	private void removeMissingDependencies()
+	{
+		boolean removed = true;
+		while (removed)
+		{
+			removed = false;
+			for (final PluginManifest manifest : new ArrayList<>(this.plugins.values()))
+			{
+				for (final String dependency : manifest.getDependencies().getDepends())
+				{
+					if (!this.plugins.containsKey(dependency))
+					{
+						Globals.getLogger().fatal("Plugin %s depends on %s, which isn't installed. Skipping.",
+							manifest.getName(), dependency);
+						this.plugins.remove(manifest.getName());
+						removed = true;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private void addEdge(final String from, final String to)
+	{
+		if (this.plugins.containsKey(from) && this.plugins.containsKey(to) && !from.equals(to))
+		{
+			this.successors.get(from).add(to);
+		}
+	}
+
+	private boolean reaches(final String from, final String to)
+	{
+		final List<String> pending = new ArrayList<>();
+		final Set<String> seen = new TreeSet<>();
+		pending.add(from);
+		while (!pending.isEmpty())
+		{
+			final String name = pending.remove(pending.size() - 1);
+			if (name.equals(to))
+			{
+				return true;
+			}
+			if (seen.add(name))
+			{
+				pending.addAll(this.successors.get(name));
+			}
+		}
+		return false;
+	}
+
+	private void sort()
+	{
+		final Map<String, Integer> inDegree = new HashMap<>();
+		final Map<String, Integer> depth = new HashMap<>();
+		for (final String name : this.plugins.keySet())
+		{
+			inDegree.putIfAbsent(name, 0);
+			for (final String successor : this.successors.get(name))
+			{
+				inDegree.merge(successor, 1, Integer::sum);
+			}
+		}
+		final PriorityQueue<String> ready = new PriorityQueue<>();
+		for (final Map.Entry<String, Integer> entry : inDegree.entrySet())
+		{
+			if (entry.getValue() == 0)
+			{
+				ready.add(entry.getKey());
+			}
+		}
+		while (!ready.isEmpty())
+		{
+			final String name = ready.poll();
+			final int stage = depth.getOrDefault(name, 0);
+			while (this.stages.size() <= stage)
+			{
+				this.stages.add(new ArrayList<>());
+			}
+			this.stages.get(stage).add(this.plugins.get(name));
+			this.order.add(this.plugins.get(name));
+			for (final String successor : this.successors.get(name))
+			{
+				depth.merge(successor, stage + 1, Math::max);
+				if (inDegree.merge(successor, -1, Integer::sum) == 0)
+				{
+					ready.add(successor);
+				}
+			}
+		}
+		if (this.order.size() != this.plugins.size())
+		{
+			final Set<String> cycle = new TreeSet<>(this.plugins.keySet());
+			for (final PluginManifest manifest : this.order)
+			{
+				cycle.remove(manifest.getName());
+			}
+			Globals.getLogger().fatal("Plugins %s depend on each other in a cycle. Skipping them.", cycle);
+		}
+	}
+
+	private static boolean overlaps(final List<String> writes, final List<String> reads)
+	{
+		for (final String write : writes)
+		{
+			for (final String read : reads)
+			{
+				if (write.equals(read) || matches(write, read) || matches(read, write))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(final String glob, final String name)
+	{
+		return Pattern.matches(TargetIndex.globToRegex(glob), name);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import lombok.Getter;
+
+import java.util.function.Supplier;
+
+/**
+ * A plugin known from its manifest. The plugin itself is only loaded the first time a class it targets is
+ * augmented, plugins whose targets never match are never loaded at all.
+ */
+public class PluginHandle
+{
+	@Getter
+	private final PluginManifest manifest;
+	/**
+	 * name@version#file hash, part of the class cache key of every class the plugin targets
+	 */
+	@Getter
+	private final String fingerprint;
+	private final Supplier<Plugin> loader;
+	private volatile Plugin instance;
+	private volatile boolean failed = false;
+	/**
+	 * Set while this thread runs the loader, so classes the plugin loads during init() don't try to load it again
+	 */
+	private final ThreadLocal<Boolean> loading = new ThreadLocal<>();
+
+	PluginHandle(final PluginManifest manifest, final String fingerprint, final Supplier<Plugin> loader)
+	{
+		this.manifest = manifest;
+		this.fingerprint = fingerprint;
+		this.loader = loader;
+	}
+
+	/**
+	 * @return the plugin, loading it if this is the first call, or null if it failed to load or is being loaded by
+	 * this thread right now
+	 */
+	public Plugin getInstance()
+	{
+		final Plugin plugin = this.instance;
+		if (plugin != null || this.failed || this.loading.get() != null)
+		{
+			return plugin;
+		}
+		synchronized (this)
+		{
+			if (this.instance == null && !this.failed)
+			{
+				this.loading.set(Boolean.TRUE);
+				try
+				{
+					this.instance = this.loader.get();
+				}
+				finally
+				{
+					this.loading.remove();
+				}
+				this.failed = this.instance == null;
+			}
+			return this.instance;
+		}
+	}
+
+	public boolean isLoaded()
+	{
+		return this.instance != null;
+	}
+}
@@ -16,13 +16,23 @@
  */
 package com.thatgamerblue.spigotwrapper.plugins;
 
+import com.thatgamerblue.spigotwrapper.instrumentation.AugmentationMetrics;
+import com.thatgamerblue.spigotwrapper.instrumentation.HierarchyClassWriter;
+import com.thatgamerblue.spigotwrapper.instrumentation.ServerJar;
+import com.thatgamerblue.spigotwrapper.instrumentation.ZipArchive;
 import com.thatgamerblue.spigotwrapper.util.Globals;
 import com.thatgamerblue.spigotwrapper.util.Logger;
 import com.thatgamerblue.spigotwrapper.util.Utils;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
@@ -31,19 +41,40 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.stream.Collectors;
 
-public class PluginManager
+public class PluginManager implements Closeable
 {
 	public static final File PLUGIN_DIRECTORY = new File("wrapper-plugins/");
-	private final List<Plugin> loadedPlugins = new ArrayList<>();
+	/**
+	 * Jars shared by all plugins, loaded once into the parent of every plugin's class loader
+	 */
+	public static final File LIBRARY_DIRECTORY = new File(PLUGIN_DIRECTORY, "libs/");
+	private final List<PluginHandle> plugins = new ArrayList<>();
+	private TargetIndex targetIndex = new TargetIndex(this.plugins);
 	private boolean hasLoaded = false;
-	private URLClassLoader pluginClassLoader = null;
+	private ClassLoader libraryClassLoader = this.getClass().getClassLoader();
+	private String libraryFingerprint = "";
+	private final List<URLClassLoader> classLoaders = Collections.synchronizedList(new ArrayList<>());
+	private final ServerJar serverJar;
+	/**
+	 * Only set while the augmented jar is being built, the agent doesn't collect timings
+	 */
+	@Setter
+	private volatile AugmentationMetrics metrics = null;
+
+	public PluginManager(final ServerJar serverJar)
+	{
+		this.serverJar = serverJar;
+	}
 
 	public void init()
 	{
@@ -70,46 +101,110 @@ public class PluginManager
 				"wrapper-plugins needs to be readable and executable by the current user. Please resolve this and re-run.");
 			System.exit(-1);
 		}
-		final Map<File, PluginManifest> validPlugins = new HashMap<>();
-		for (final File file : PluginManager.PLUGIN_DIRECTORY.listFiles())
+		final File[] files = PluginManager.PLUGIN_DIRECTORY.listFiles();
+		Arrays.sort(files);
+		// only manifest.json is read from each jar, and jars are read in parallel
+		final ManifestCache manifestCache = ManifestCache.load();
+		final List<PluginManifest> manifests = Arrays.stream(files).parallel()
+			.map(file -> this.readManifest(file, manifestCache))
+			.collect(Collectors.toList());
+		manifestCache.save();
+		Globals.getFingerprintStore().save();
+		final Map<File, PluginManifest> validPlugins = new LinkedHashMap<>();
+		for (int i = 0; i < files.length; i++)
 		{
-			if (!file.getName().endsWith(".jar"))
+			if (manifests.get(i) != null)
 			{
-				Globals.getLogger().warn("Found non-jar file in wrapper-plugins folder, %s", file.getName());
+				validPlugins.put(files[i], manifests.get(i));
 			}
-			else
+		}
+		if (loadPlugins)
+		{
+			this.loadPlugins(validPlugins);
+		}
+	}
+
+	private PluginManifest readManifest(final File file, final ManifestCache manifestCache)
+	{
+		if (file.equals(LIBRARY_DIRECTORY))
+		{
+			return null;
+		}
+		if (!file.getName().endsWith(".jar"))
+		{
+			Globals.getLogger().warn("Found non-jar file in wrapper-plugins folder, %s", file.getName());
+			return null;
+		}
+		try
+		{
+			final String fileHash = Globals.getFingerprintStore().hash(file);
+			String jsonString = manifestCache.get(fileHash);
+			if (jsonString == null)
 			{
-				final TreeMap<String, byte[]> contents = Utils.readAllEntries(file);
-				if (!contents.containsKey("manifest.json"))
+				try (final ZipArchive archive = new ZipArchive(file))
 				{
-					Globals.getLogger().fatal("File %s is not a plugin file, missing manifest.json", file.getName());
-				}
-				else
-				{
-					final byte[] bManifestContents = contents.get("manifest.json");
-					final String jsonString = new String(bManifestContents, StandardCharsets.UTF_8);
-					try
+					final ZipArchive.Entry manifestEntry = archive.getEntry("manifest.json");
+					if (manifestEntry == null)
 					{
-						final JSONObject jsonRoot = (JSONObject) Globals.getJsonParser().parse(jsonString);
-						final String author = (String) jsonRoot.get("author");
-						final String name = (String) jsonRoot.get("name");
-						final String version = (String) jsonRoot.get("version");
-						final String mainClass = (String) jsonRoot.get("main_class");
-						final PluginManifest manifest = new PluginManifest(name, version, author, mainClass);
-						validPlugins.put(file, manifest);
-					}
-					catch (ParseException ex)
-					{
-						Globals.getLogger().fatal("Failed to parse manifest.json in %s, skipping%n%s", file.getName(),
-							Logger.exceptionToString(ex));
+						Globals.getLogger().fatal("File %s is not a plugin file, missing manifest.json", file.getName());
+						return null;
 					}
+					jsonString = new String(archive.readBytes(manifestEntry), StandardCharsets.UTF_8);
 				}
 			}
+			final PluginManifest manifest = this.parseManifest(jsonString);
+			manifestCache.put(fileHash, jsonString);
+			return manifest;
 		}
-		if (loadPlugins)
+		catch (IOException ex)
 		{
-			this.loadPlugins(validPlugins);
+			Globals.getLogger().fatal("Failed to read %s, skipping%n%s", file.getName(), Logger.exceptionToString(ex));
+		}
+		catch (ParseException | ClassCastException ex)
+		{
+			Globals.getLogger().fatal("Failed to parse manifest.json in %s, skipping%n%s", file.getName(),
+				Logger.exceptionToString(ex));
+		}
+		return null;
+	}
+
+	private PluginManifest parseManifest(final String jsonString) throws ParseException
+	{
+		// Globals' parser isn't thread safe, manifests are parsed on several threads
+		final JSONObject jsonRoot = (JSONObject) new JSONParser().parse(jsonString);
+		final String author = (String) jsonRoot.get("author");
+		final String name = (String) jsonRoot.get("name");
+		final String version = (String) jsonRoot.get("version");
+		final String mainClass = (String) jsonRoot.get("main_class");
+		final boolean threadSafe = Boolean.TRUE.equals(jsonRoot.get("thread_safe"));
+		final PluginTargets targets = this.parseTargets((JSONObject) jsonRoot.get("targets"));
+		final PluginDependencies dependencies = new PluginDependencies(this.stringList(jsonRoot.get("depends")),
+			this.stringList(jsonRoot.get("after")), this.stringList(jsonRoot.get("before")),
+			this.stringList(jsonRoot.get("reads")), this.stringList(jsonRoot.get("writes")));
+		return new PluginManifest(name, version, author, mainClass, threadSafe, targets, dependencies);
+	}
+
+	private PluginTargets parseTargets(final JSONObject targets)
+	{
+		if (targets == null)
+		{
+			return PluginTargets.ALL;
+		}
+		return new PluginTargets(this.stringList(targets.get("classes")), this.stringList(targets.get("packages")),
+			this.stringList(targets.get("globs")), this.stringList(targets.get("regexes")));
+	}
+
+	private List<String> stringList(final Object jsonArray)
+	{
+		final List<String> list = new ArrayList<>();
+		if (jsonArray instanceof List)
+		{
+			for (final Object o : (List<?>) jsonArray)
+			{
+				list.add(String.valueOf(o));
+			}
 		}
+		return list;
 	}
 
 	@SneakyThrows
@@ -132,71 +227,270 @@ public class PluginManager
 			Globals.getLogger().warn("No plugins found to load. Skipping.");
 			return;
 		}
-		Globals.getLogger().info("Creating class loader...");
-		final Object[] fileAryObj =
-			validPlugins.keySet().stream().map(this::fileToURL).toArray();
-		this.pluginClassLoader = new URLClassLoader(
-			Arrays.copyOf(fileAryObj, fileAryObj.length, URL[].class),
-			this.getClass().getClassLoader());
-		Globals.getLogger().info("Loading plugins...");
-		int loadedPluginCount = 0;
-		for (final Map.Entry<File, PluginManifest> keyValueSet : validPlugins.entrySet())
+		// manifests compare by value, two jars with identical manifests must still map back to their own file
+		final Map<PluginManifest, File> pluginFiles = new IdentityHashMap<>();
+		for (final Map.Entry<File, PluginManifest> entry : validPlugins.entrySet())
+		{
+			pluginFiles.put(entry.getValue(), entry.getKey());
+		}
+		// plugins run on each class in dependency order
+		final PluginGraph graph = new PluginGraph(validPlugins.values());
+		for (int i = 0; i < graph.getStages().size(); i++)
+		{
+			Globals.getLogger().debug("Plugin stage %d: %s", i + 1, graph.getStages().get(i).stream()
+				.map(PluginManifest::getName).collect(Collectors.joining(", ")));
+		}
+		final Map<File, PluginManifest> orderedPlugins = new LinkedHashMap<>();
+		for (final PluginManifest manifest : graph.getOrder())
+		{
+			orderedPlugins.put(pluginFiles.get(manifest), manifest);
+		}
+		final File[] libraries = LIBRARY_DIRECTORY.listFiles((dir, name) -> name.endsWith(".jar"));
+		if (libraries != null && libraries.length > 0)
+		{
+			Arrays.sort(libraries);
+			Globals.getLogger().info("Creating library class loader for %d jars...", libraries.length);
+			final URLClassLoader libraryLoader = new URLClassLoader(
+				Arrays.stream(libraries).map(this::fileToURL).toArray(URL[]::new), this.getClass().getClassLoader());
+			this.classLoaders.add(libraryLoader);
+			this.libraryClassLoader = libraryLoader;
+			// every plugin can use the libraries, so they are part of every plugin's fingerprint
+			this.libraryFingerprint = "+" + Utils.sha256(String.join(",",
+				Globals.getFingerprintStore().hashAll(Arrays.asList(libraries))).getBytes(StandardCharsets.UTF_8));
+		}
+		for (final Map.Entry<File, PluginManifest> keyValueSet : orderedPlugins.entrySet())
 		{
 			final File pluginFile = keyValueSet.getKey();
 			final PluginManifest manifest = keyValueSet.getValue();
-			Globals.getLogger().info("Loading plugin %s v%s by %s", manifest.getName(), manifest.getVersion(),
-				manifest.getAuthor());
-			Class clazz;
-			try
+			final String fingerprint = this.getFingerprint(manifest, Globals.getFingerprintStore().hash(pluginFile));
+			this.addPlugin(new PluginHandle(manifest, fingerprint, () -> this.loadPlugin(pluginFile, manifest)));
+		}
+		Globals.getLogger().info("Found %d plugins, each is loaded when it first sees a class.", this.plugins.size());
+	}
+
+	/**
+	 * Gives the plugin a class loader of its own on top of the wrapper and the shared libraries, so plugins can't see
+	 * each other's classes
+	 */
+	private Plugin loadPlugin(final File pluginFile, final PluginManifest manifest)
+	{
+		Globals.getLogger().info("Loading plugin %s v%s by %s", manifest.getName(), manifest.getVersion(),
+			manifest.getAuthor());
+		final URLClassLoader classLoader = new URLClassLoader(new URL[] { this.fileToURL(pluginFile) },
+			this.libraryClassLoader);
+		this.classLoaders.add(classLoader);
+		Class clazz;
+		try
+		{
+			clazz = classLoader.loadClass(manifest.getMainClass().replace("/", "."));
+		}
+		catch (ClassNotFoundException e2)
+		{
+			Globals.getLogger()
+				.fatal("Couldn't find main class %s for plugin %s, report this to the author!",
+					manifest.getMainClass(), manifest.getName());
+			return null;
+		}
+		if (!Plugin.class.isAssignableFrom(clazz))
+		{
+			Globals.getLogger()
+				.fatal("Plugin class %s from %s doesn't extend Plugin! Skipping.", manifest.getMainClass(),
+					manifest.getName());
+			return null;
+		}
+		Plugin instance;
+		try
+		{
+			instance = (Plugin) clazz.getConstructor().newInstance();
+		}
+		catch (InstantiationException | InvocationTargetException | NoSuchMethodException | IllegalAccessException ex2)
+		{
+			Globals.getLogger()
+				.fatal("Couldn't instantiate class %s from %s! Skipping.", manifest.getMainClass(),
+					manifest.getName());
+			return null;
+		}
+		this.initPlugin(instance, manifest);
+		return instance;
+	}
+
+	/**
+	 * Adds an already constructed plugin, for plugins that don't come from a jar in wrapper-plugins (e.g. benchmarks)
+	 *
+	 * @param fileHash hash of whatever the plugin was loaded from, becomes part of the class cache key
+	 */
+	public void registerPlugin(final Plugin instance, final PluginManifest manifest, final String fileHash)
+	{
+		this.initPlugin(instance, manifest);
+		this.addPlugin(new PluginHandle(manifest, this.getFingerprint(manifest, fileHash), () -> instance));
+	}
+
+	/**
+	 * Loads every plugin now instead of when it first sees a class. The agent needs this, a plugin loaded from inside
+	 * a class file transformer could load server classes that come back through the same transformer.
+	 */
+	public void loadAllPlugins()
+	{
+		int loaded = 0;
+		for (final PluginHandle handle : this.plugins)
+		{
+			loaded += handle.getInstance() != null ? 1 : 0;
+		}
+		Globals.getLogger().info("Loaded %d of %d plugins", loaded, this.plugins.size());
+	}
+
+	private void initPlugin(final Plugin instance, final PluginManifest manifest)
+	{
+		this.injectField(instance, "manifest", manifest);
+		this.injectField(instance, "serverJar", this.serverJar);
+		instance.init();
+	}
+
+	private void addPlugin(final PluginHandle handle)
+	{
+		this.plugins.add(handle);
+		this.targetIndex = new TargetIndex(this.plugins);
+	}
+
+	private String getFingerprint(final PluginManifest manifest, final String fileHash)
+	{
+		return manifest.getName() + "@" + manifest.getVersion() + "#" + fileHash + this.libraryFingerprint;
+	}
+
+	@SneakyThrows
+	private void injectField(final Plugin instance, final String name, final Object value)
+	{
+		final Field field = Plugin.class.getDeclaredField(name);
+		final boolean fieldFlag = field.isAccessible();
+		field.setAccessible(true);
+		field.set(instance, value);
+		field.setAccessible(fieldFlag);
+	}
+
+	public byte[] onClassLoaded(final byte[] originalBytes, final String className)
+	{
+		final AugmentationMetrics metrics = this.metrics;
+		final long classStart = metrics == null ? 0L : System.nanoTime();
+		byte[] transformedBytes = originalBytes;
+		// consecutive tree plugins share one parsed ClassNode, which is only written back when a byte[] plugin
+		// needs the bytes or every plugin has run
+		ClassReader reader = null;
+		ClassNode classNode = null;
+		int changes = ClassNodePlugin.UNCHANGED;
+		for (final PluginHandle handle : this.targetIndex.getPlugins(className))
+		{
+			final Plugin plugin = handle.getInstance();
+			if (plugin == null)
 			{
-				clazz = this.pluginClassLoader.loadClass(manifest.getMainClass().replace("/", "."));
+				continue;
 			}
-			catch (ClassNotFoundException e2)
+			if (plugin instanceof ClassNodePlugin)
 			{
-				Globals.getLogger()
-					.fatal("Couldn't find main class %s for plugin %s, report this to the author!",
-						manifest.getMainClass(), manifest.getName());
-				return;
+				if (classNode == null)
+				{
+					final long parseStart = metrics == null ? 0L : System.nanoTime();
+					reader = new ClassReader(transformedBytes);
+					classNode = new ClassNode();
+					reader.accept(classNode, 0);
+					if (metrics != null)
+					{
+						metrics.recordPlugin(AugmentationMetrics.ASM, System.nanoTime() - parseStart, false);
+					}
+				}
+				final long pluginStart = metrics == null ? 0L : System.nanoTime();
+				final int pluginChanges = this.transform((ClassNodePlugin) plugin, classNode, className);
+				changes |= pluginChanges;
+				if (metrics != null)
+				{
+					metrics.recordPlugin(plugin.getManifest().getName(), System.nanoTime() - pluginStart,
+						pluginChanges != ClassNodePlugin.UNCHANGED);
+				}
+				continue;
 			}
-			if (clazz.getSuperclass() != Plugin.class)
+			if (classNode != null)
 			{
-				Globals.getLogger()
-					.fatal("Plugin class %s from %s doesn't extend Plugin! Skipping.", manifest.getMainClass(),
-						manifest.getName());
-				return;
+				transformedBytes = this.writeClassNode(reader, classNode, changes, transformedBytes);
+				reader = null;
+				classNode = null;
+				changes = ClassNodePlugin.UNCHANGED;
 			}
-			Plugin instance;
-			try
+			final long pluginStart = metrics == null ? 0L : System.nanoTime();
+			final byte[] pluginInput = transformedBytes;
+			if (plugin.getManifest().isThreadSafe())
 			{
-				instance = (Plugin) clazz.getConstructor().newInstance();
+				transformedBytes = plugin.onClassLoaded(transformedBytes, className);
 			}
-			catch (InstantiationException | InvocationTargetException | NoSuchMethodException | IllegalAccessException ex2)
+			else
 			{
-				Globals.getLogger()
-					.fatal("Couldn't instantiate class %s from %s! Skipping.", manifest.getMainClass(),
-						manifest.getName());
-				return;
+				synchronized (plugin)
+				{
+					transformedBytes = plugin.onClassLoaded(transformedBytes, className);
+				}
 			}
-			final Field manifestField = Plugin.class.getDeclaredField("manifest");
-			final boolean manifestFieldFlag = manifestField.isAccessible();
-			manifestField.setAccessible(true);
-			manifestField.set(instance, manifest);
-			manifestField.setAccessible(manifestFieldFlag);
-			instance.init();
-			this.loadedPlugins.add(instance);
-			++loadedPluginCount;
+			if (metrics != null)
+			{
+				metrics.recordPlugin(plugin.getManifest().getName(), System.nanoTime() - pluginStart,
+					transformedBytes != pluginInput);
+			}
+		}
+		if (classNode != null)
+		{
+			transformedBytes = this.writeClassNode(reader, classNode, changes, transformedBytes);
+		}
+		if (metrics != null)
+		{
+			metrics.recordClass(className, System.nanoTime() - classStart, originalBytes.length,
+				transformedBytes == null ? 0 : transformedBytes.length, transformedBytes != originalBytes);
 		}
-		Globals.getLogger().info("Loaded %d plugins.", loadedPluginCount);
+		return transformedBytes;
 	}
 
-	public byte[] onClassLoaded(final byte[] originalBytes, final String className)
+	private int transform(final ClassNodePlugin plugin, final ClassNode classNode, final String className)
 	{
-		byte[] transformedBytes = originalBytes;
-		for (final Plugin plugin : this.loadedPlugins)
+		if (plugin.getManifest().isThreadSafe())
 		{
-			transformedBytes = plugin.onClassLoaded(transformedBytes, className);
+			return plugin.transform(classNode, className);
 		}
-		return transformedBytes;
+		synchronized (plugin)
+		{
+			return plugin.transform(classNode, className);
+		}
+	}
+
+	private byte[] writeClassNode(final ClassReader reader, final ClassNode classNode, final int changes,
+		final byte[] originalBytes)
+	{
+		if (changes == ClassNodePlugin.UNCHANGED)
+		{
+			return originalBytes;
+		}
+		final long writeStart = this.metrics == null ? 0L : System.nanoTime();
+		final int flags = getWriterFlags(changes);
+		final ClassWriter writer = (flags & ClassWriter.COMPUTE_FRAMES) == 0 ? new ClassWriter(reader, flags)
+			: new HierarchyClassWriter(this.serverJar.getClassHierarchy(), reader, flags);
+		classNode.accept(writer);
+		final byte[] bytes = writer.toByteArray();
+		if (this.metrics != null)
+		{
+			this.metrics.recordPlugin(AugmentationMetrics.ASM, System.nanoTime() - writeStart, true);
+		}
+		return bytes;
+	}
+
+	static int getWriterFlags(final int changes)
+	{
+		return (changes & ClassNodePlugin.CHANGED_CONTROL_FLOW) == ClassNodePlugin.CHANGED_CONTROL_FLOW
+			? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS;
+	}
+
+	public String getPluginFingerprint(final String className)
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (final PluginHandle handle : this.targetIndex.getPlugins(className))
+		{
+			sb.append(handle.getFingerprint()).append(';');
+		}
+		return sb.toString();
 	}
 
 	public boolean validatePluginCache(final File finalJar)
@@ -206,7 +500,7 @@ public class PluginManager
 			Globals.getLogger().warn("SHA256 instance is null");
 			return false;
 		}
-		if (!finalJar.exists() || !finalJar.canExecute())
+		if (!finalJar.exists() || !finalJar.canRead())
 		{
 			Globals.getLogger().debug("Final JAR doesn't exist");
 			return false;
@@ -236,4 +530,21 @@ public class PluginManager
 		return false;
 	}
 
+	public void updatePluginCacheHash() throws IOException
+	{
+		final File hashFile = new File("cache/plugins.sha256");
+		final String calculatedHash = Utils.hashPluginsAndServer();
+		hashFile.delete();
+		Files.write(hashFile.toPath(), calculatedHash.getBytes(), StandardOpenOption.CREATE_NEW);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		for (final URLClassLoader classLoader : this.classLoaders)
+		{
+			classLoader.close();
+		}
+	}
+
 }
@@ -26,4 +26,7 @@ public class PluginManifest
 	private final String version;
 	private final String author;
 	private final String mainClass;
+	private final boolean threadSafe;
+	private final PluginTargets targets;
+	private final PluginDependencies dependencies;
 }
@@ -0,0 +1,44 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Classes a plugin wants to see, as declared under "targets" in manifest.json. Class and package names use dots,
+ * globs support {@code *} (within a package), {@code **} (across packages) and {@code ?}.
+ */
+@Data
+public class PluginTargets
+{
+	public static final PluginTargets ALL = new PluginTargets(Collections.emptyList(), Collections.emptyList(),
+		Collections.emptyList(), Collections.emptyList());
+
+	private final List<String> classes;
+	private final List<String> packages;
+	private final List<String> globs;
+	private final List<String> regexes;
+
+	public boolean isEmpty()
+	{
+		return this.classes.isEmpty() && this.packages.isEmpty() && this.globs.isEmpty() && this.regexes.isEmpty();
+	}
+}
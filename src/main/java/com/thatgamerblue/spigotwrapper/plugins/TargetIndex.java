@@ -0,0 +1,161 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.plugins;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Maps class names to the plugins that target them. Exact names are a hash lookup and packages are a trie walk over
+ * the class's package segments, so only globs and regexes are checked one by one. Plugins without targets receive
+ * every class.
+ */
+public class TargetIndex
+{
+	private final List<PluginHandle> plugins;
+	private final BitSet untargeted = new BitSet();
+	private final Map<String, BitSet> exact = new HashMap<>();
+	private final PackageNode packageRoot = new PackageNode();
+	private final List<Pattern> patterns = new ArrayList<>();
+	private final List<Integer> patternOwners = new ArrayList<>();
+
+	public TargetIndex(final List<PluginHandle> plugins)
+	{
+		this.plugins = plugins;
+		for (int i = 0; i < plugins.size(); i++)
+		{
+			final PluginTargets targets = plugins.get(i).getManifest().getTargets();
+			if (targets.isEmpty())
+			{
+				this.untargeted.set(i);
+				continue;
+			}
+			for (final String className : targets.getClasses())
+			{
+				this.exact.computeIfAbsent(className, k -> new BitSet()).set(i);
+			}
+			for (final String packageName : targets.getPackages())
+			{
+				PackageNode node = this.packageRoot;
+				for (final String segment : packageName.split("\\."))
+				{
+					if (!segment.isEmpty())
+					{
+						node = node.children.computeIfAbsent(segment, k -> new PackageNode());
+					}
+				}
+				node.plugins.set(i);
+			}
+			for (final String glob : targets.getGlobs())
+			{
+				this.patterns.add(Pattern.compile(globToRegex(glob)));
+				this.patternOwners.add(i);
+			}
+			for (final String regex : targets.getRegexes())
+			{
+				this.patterns.add(Pattern.compile(regex));
+				this.patternOwners.add(i);
+			}
+		}
+	}
+
+	public List<PluginHandle> getPlugins(final String className)
+	{
+		final BitSet matches = (BitSet) this.untargeted.clone();
+		final BitSet exactMatches = this.exact.get(className);
+		if (exactMatches != null)
+		{
+			matches.or(exactMatches);
+		}
+		PackageNode node = this.packageRoot;
+		int start = 0;
+		int dot;
+		while (node != null && (dot = className.indexOf('.', start)) >= 0)
+		{
+			node = node.children.get(className.substring(start, dot));
+			if (node != null)
+			{
+				matches.or(node.plugins);
+			}
+			start = dot + 1;
+		}
+		for (int i = 0; i < this.patterns.size(); i++)
+		{
+			final int owner = this.patternOwners.get(i);
+			if (!matches.get(owner) && this.patterns.get(i).matcher(className).matches())
+			{
+				matches.set(owner);
+			}
+		}
+		if (matches.isEmpty())
+		{
+			return Collections.emptyList();
+		}
+		final List<PluginHandle> result = new ArrayList<>(matches.cardinality());
+		for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+		{
+			result.add(this.plugins.get(i));
+		}
+		return result;
+	}
+
+	static String globToRegex(final String glob)
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++)
+		{
+			final char c = glob.charAt(i);
+			if (c == '*')
+			{
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+				{
+					sb.append(".*");
+					i++;
+				}
+				else
+				{
+					sb.append("[^.]*");
+				}
+			}
+			else if (c == '?')
+			{
+				sb.append("[^.]");
+			}
+			else if (Character.isLetterOrDigit(c) || c == '_')
+			{
+				sb.append(c);
+			}
+			else
+			{
+				sb.append('\\').append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static class PackageNode
+	{
+		private final Map<String, PackageNode> children = new HashMap<>();
+		private final BitSet plugins = new BitSet();
+	}
+}
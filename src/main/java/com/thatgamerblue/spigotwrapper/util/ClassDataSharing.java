@@ -0,0 +1,278 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps an AppCDS archive of the classes the server loads from the augmented jar. The first launch after the jar
+ * changes dumps the archive on exit, and later launches map it in. The archive is tied to the plugin cache hash, the
+ * size and modification time of the jar it was dumped from, the java executable and the JVM flags, since the JVM
+ * refuses an archive dumped by another JDK or with another GC or heap layout. The server's java version is probed once per java
+ * executable and remembered next to the archive, so a normal launch doesn't start an extra JVM.
+ */
+public class ClassDataSharing
+{
+	private static final Pattern VERSION_PATTERN = Pattern.compile("version \"(1\\.)?(\\d+)");
+	/**
+	 * Largest heap the JVM uses compressed oops for, which changes the layout of archived objects
+	 */
+	private static final long COMPRESSED_OOPS_LIMIT = 32L << 30;
+
+	private final File archiveFile;
+	private final File keyFile;
+	private final File javaVersionFile;
+	private final File launchJar;
+	private String pendingKey;
+	private int javaVersion = 0;
+
+	public ClassDataSharing(final File archiveFile, final File launchJar)
+	{
+		this.archiveFile = archiveFile;
+		this.keyFile = new File(archiveFile.getPath() + ".key");
+		this.javaVersionFile = new File(archiveFile.getPath() + ".java");
+		this.launchJar = launchJar;
+	}
+
+	/**
+	 * @param jvmArguments the other arguments the server JVM is started with
+	 */
+	public List<String> getJvmArguments(final String javaExecutable, final List<String> jvmArguments)
+	{
+		final File executable = resolveExecutable(javaExecutable);
+		if (this.javaVersion == 0)
+		{
+			this.javaVersion = this.getJavaVersion(javaExecutable, executable);
+		}
+		if (this.javaVersion < 13)
+		{
+			Globals.getLogger().warn("Class data sharing needs Java 13 or newer for the server, found %d. Skipping.",
+				this.javaVersion);
+			return Collections.emptyList();
+		}
+		final String key = this.computeKey(javaExecutable, executable, jvmArguments);
+		final List<String> args = new ArrayList<>();
+		if (key != null && this.archiveFile.exists() && key.equals(this.readKey()))
+		{
+			Globals.getLogger().info("Using class data sharing archive %s", this.archiveFile.getName());
+			args.add("-XX:SharedArchiveFile=" + this.archiveFile.getAbsolutePath());
+		}
+		else
+		{
+			Globals.getLogger().info("Class data sharing archive will be created when the server stops");
+			this.archiveFile.delete();
+			this.keyFile.delete();
+			this.pendingKey = key;
+			args.add("-XX:ArchiveClassesAtExit=" + this.archiveFile.getAbsolutePath());
+		}
+		return args;
+	}
+
+	public void onServerExit()
+	{
+		if (this.pendingKey == null || !this.archiveFile.exists())
+		{
+			return;
+		}
+		try
+		{
+			Files.write(this.keyFile.toPath(), this.pendingKey.getBytes(StandardCharsets.UTF_8));
+			Globals.getLogger().info("Created class data sharing archive %s", this.archiveFile.getName());
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to store class data sharing key%n%s", Logger.exceptionToString(ex));
+		}
+	}
+
+	private String computeKey(final String javaExecutable, final File executable, final List<String> jvmArguments)
+	{
+		final File hashFile = new File("cache/plugins.sha256");
+		if (!hashFile.exists() || !this.launchJar.exists())
+		{
+			return null;
+		}
+		try
+		{
+			final StringBuilder sb = new StringBuilder();
+			sb.append(new String(Files.readAllBytes(hashFile.toPath()), StandardCharsets.UTF_8));
+			sb.append(' ').append(this.launchJar.length()).append(' ').append(this.launchJar.lastModified());
+			sb.append(' ').append(executable == null ? javaExecutable
+				: executable.getPath() + " " + executable.lastModified());
+			for (final String arg : jvmArguments)
+			{
+				final String keyArgument = getKeyArgument(arg);
+				if (keyArgument != null)
+				{
+					sb.append(' ').append(keyArgument);
+				}
+			}
+			return sb.toString();
+		}
+		catch (IOException ex)
+		{
+			return null;
+		}
+	}
+
+	private String readKey()
+	{
+		try
+		{
+			return this.keyFile.exists() ? new String(Files.readAllBytes(this.keyFile.toPath()), StandardCharsets.UTF_8)
+				: null;
+		}
+		catch (IOException ex)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * The heap size under --heap-policy inherit moves by a few megabytes from launch to launch, only whether it
+	 * still gets compressed oops matters to the archive
+	 */
+	private static String getKeyArgument(final String arg)
+	{
+		if (arg.startsWith("-Xms"))
+		{
+			return null;
+		}
+		if (arg.startsWith("-Xmx"))
+		{
+			final long size = HeapPolicy.parseSize(arg.substring(4));
+			if (size > 0)
+			{
+				return size < COMPRESSED_OOPS_LIMIT ? "-Xmx<32g" : "-Xmx>=32g";
+			}
+		}
+		return arg;
+	}
+
+	private int getJavaVersion(final String javaExecutable, final File executable)
+	{
+		if (executable == null)
+		{
+			return probeJavaVersion(javaExecutable);
+		}
+		// an upgrade replaces the binary, or moves the symlink the path resolves through
+		final String key = executable.getPath() + " " + executable.lastModified();
+		try
+		{
+			if (this.javaVersionFile.exists())
+			{
+				final List<String> lines = Files.readAllLines(this.javaVersionFile.toPath(), StandardCharsets.UTF_8);
+				if (lines.size() == 2 && lines.get(0).equals(key))
+				{
+					return Integer.parseInt(lines.get(1));
+				}
+			}
+		}
+		catch (IOException | NumberFormatException ex)
+		{
+			Globals.getLogger().debug("Ignoring %s%n%s", this.javaVersionFile.getName(), Logger.exceptionToString(ex));
+		}
+		final int version = probeJavaVersion(executable.getPath());
+		if (version > 0)
+		{
+			try
+			{
+				Files.write(this.javaVersionFile.toPath(), Arrays.asList(key, Integer.toString(version)),
+					StandardCharsets.UTF_8);
+			}
+			catch (IOException ex)
+			{
+				Globals.getLogger().warn("Failed to store the server's java version%n%s", Logger.exceptionToString(ex));
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * Finds the file a java command runs, looking through PATH for bare names like the process builder does
+	 *
+	 * @return the executable with symlinks resolved, or null if it can't be found
+	 */
+	private static File resolveExecutable(final String javaExecutable)
+	{
+		final List<File> candidates = new ArrayList<>();
+		if (javaExecutable.contains(File.separator))
+		{
+			candidates.add(new File(javaExecutable));
+		}
+		else
+		{
+			final String path = System.getenv("PATH");
+			final boolean windows = File.separatorChar == '\\';
+			for (final String directory : path == null ? new String[0] : path.split(Pattern.quote(File.pathSeparator)))
+			{
+				candidates.add(new File(directory, javaExecutable));
+				if (windows)
+				{
+					candidates.add(new File(directory, javaExecutable + ".exe"));
+				}
+			}
+		}
+		for (final File candidate : candidates)
+		{
+			if (candidate.isFile() && candidate.canExecute())
+			{
+				try
+				{
+					return candidate.toPath().toRealPath().toFile();
+				}
+				catch (IOException ex)
+				{
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static int probeJavaVersion(final String javaExecutable)
+	{
+		try
+		{
+			final Process process = new ProcessBuilder(javaExecutable, "-version").redirectErrorStream(true).start();
+			final String output;
+			try (final InputStream in = process.getInputStream())
+			{
+				output = new String(Utils.readFully(in, 0), StandardCharsets.UTF_8);
+			}
+			process.waitFor();
+			final Matcher matcher = VERSION_PATTERN.matcher(output);
+			return matcher.find() ? Integer.parseInt(matcher.group(2)) : -1;
+		}
+		catch (IOException | InterruptedException ex)
+		{
+			Globals.getLogger().warn("Failed to find the server's java version%n%s", Logger.exceptionToString(ex));
+			return -1;
+		}
+	}
+}
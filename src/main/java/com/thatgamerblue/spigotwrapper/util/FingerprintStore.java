@@ -0,0 +1,167 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.util;
+
+import lombok.Data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers the SHA-256 of files together with their size, modification time and file key (inode), so a file is
+ * only read and hashed again when one of those changes.
+ */
+public class FingerprintStore
+{
+	private final File storeFile;
+	private Map<String, Fingerprint> fingerprints;
+	private volatile boolean dirty = false;
+
+	public FingerprintStore(final File storeFile)
+	{
+		this.storeFile = storeFile;
+	}
+
+	public String hash(final File file) throws IOException
+	{
+		final Map<String, Fingerprint> fingerprints = this.getFingerprints();
+		final String path = file.getAbsolutePath();
+		final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		final long size = attributes.size();
+		final long modified = attributes.lastModifiedTime().toMillis();
+		final String fileKey = attributes.fileKey() == null ? "-" : attributes.fileKey().toString().replace(' ', '_');
+		final Fingerprint stored = fingerprints.get(path);
+		if (stored != null && stored.getSize() == size && stored.getModified() == modified
+			&& stored.getFileKey().equals(fileKey))
+		{
+			return stored.getHash();
+		}
+		Globals.getLogger().debug("Hashing %s", file.getName());
+		final String hash = Utils.sha256(file);
+		fingerprints.put(path, new Fingerprint(hash, size, modified, fileKey));
+		this.dirty = true;
+		return hash;
+	}
+
+	/**
+	 * Hashes the files in parallel, returning the hashes in the same order as the files.
+	 */
+	public List<String> hashAll(final List<File> files) throws IOException
+	{
+		try
+		{
+			return files.parallelStream().map(this::hashUnchecked).collect(Collectors.toList());
+		}
+		catch (UncheckedIOException ex)
+		{
+			throw ex.getCause();
+		}
+	}
+
+	private String hashUnchecked(final File file)
+	{
+		try
+		{
+			return this.hash(file);
+		}
+		catch (IOException ex)
+		{
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	public void save()
+	{
+		if (!this.dirty)
+		{
+			return;
+		}
+		this.storeFile.getAbsoluteFile().getParentFile().mkdirs();
+		final File tempFile = new File(this.storeFile.getPath() + ".tmp");
+		try
+		{
+			try (final BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8))
+			{
+				for (final Map.Entry<String, Fingerprint> entry : new TreeMap<>(this.getFingerprints()).entrySet())
+				{
+					final Fingerprint fingerprint = entry.getValue();
+					writer.write(fingerprint.getHash() + " " + fingerprint.getSize() + " " + fingerprint.getModified() + " "
+						+ fingerprint.getFileKey() + " " + entry.getKey());
+					writer.newLine();
+				}
+			}
+			Files.move(tempFile.toPath(), this.storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			this.dirty = false;
+		}
+		catch (IOException ex)
+		{
+			Globals.getLogger().warn("Failed to save file fingerprints%n%s", Logger.exceptionToString(ex));
+		}
+	}
+
+	private synchronized Map<String, Fingerprint> getFingerprints()
+	{
+		if (this.fingerprints == null)
+		{
+			this.fingerprints = new ConcurrentHashMap<>();
+			if (this.storeFile.exists())
+			{
+				try (final BufferedReader reader = Files.newBufferedReader(this.storeFile.toPath(), StandardCharsets.UTF_8))
+				{
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						final String[] parts = line.split(" ", 5);
+						if (parts.length == 5)
+						{
+							this.fingerprints.put(parts[4],
+								new Fingerprint(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+						}
+					}
+				}
+				catch (IOException | NumberFormatException ex)
+				{
+					Globals.getLogger().warn("Failed to read file fingerprints, rehashing%n%s", Logger.exceptionToString(ex));
+					this.fingerprints.clear();
+				}
+			}
+		}
+		return this.fingerprints;
+	}
+
+	@Data
+	private static class Fingerprint
+	{
+		private final String hash;
+		private final long size;
+		private final long modified;
+		private final String fileKey;
+	}
+}
@@ -19,6 +19,8 @@ package com.thatgamerblue.spigotwrapper.util;
 import lombok.Getter;
 import org.json.simple.parser.JSONParser;
 
+import java.io.File;
+
 public class Globals
 {
 	@Getter
@@ -27,5 +29,7 @@ public class Globals
 	private static final Logger logger = new Logger();
 	@Getter
 	private static final JSONParser jsonParser = new JSONParser();
+	@Getter
+	private static final FingerprintStore fingerprintStore = new FingerprintStore(new File("cache/fingerprints.txt"));
 
 }
@@ -0,0 +1,234 @@
+/*
+ * This file is part of the SpigotWrapper distribution (https://github.com/ThatGamerBlue/SpigotWrapper).
+ * Copyright (c) 2020 ThatGamerBlue.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thatgamerblue.spigotwrapper.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Works out the heap and GC flags for the server JVM.
+ * <ul>
+ * <li>inherit: the wrapper's own max heap, minus what the wrapper itself has committed</li>
+ * <li>percent: a percentage of the container (cgroup) memory limit, or of physical memory, minus the wrapper</li>
+ * <li>absolute: exactly --heap-max</li>
+ * <li>passthrough: no heap or GC flags at all, only the JVM arguments</li>
+ * </ul>
+ */
+public class HeapPolicy
+{
+	private static final long MIN_HEAP = 64L << 20;
+	private static final long UNLIMITED = 1L << 60;
+
+	public static boolean isHeapArgument(final String arg)
+	{
+		return arg.startsWith("-Xmx") || arg.startsWith("-Xms") || arg.startsWith("-XX:MaxRAMPercentage")
+			|| arg.startsWith("-XX:InitialRAMPercentage") || arg.startsWith("-XX:MinRAMPercentage")
+			|| arg.startsWith("-XX:MaxHeapSize") || arg.startsWith("-XX:InitialHeapSize");
+	}
+
+	public static List<String> getJvmArguments(final List<String> jvmArguments)
+	{
+		final Options options = Globals.getOptions();
+		final String policy = options.getHeapPolicy().toLowerCase(Locale.ROOT);
+		final List<String> args = new ArrayList<>();
+		if (policy.equals("passthrough"))
+		{
+			return args;
+		}
+		final long wrapperFootprint = getWrapperFootprint();
+		long maxHeap;
+		switch (policy)
+		{
+			case "inherit":
+				maxHeap = Runtime.getRuntime().maxMemory() - wrapperFootprint;
+				break;
+			case "percent":
+				final long limit = getMemoryLimit();
+				maxHeap = limit / 100 * Math.max(1, Math.min(100, options.getHeapPercent())) - wrapperFootprint;
+				Globals.getLogger().debug("Memory limit: %d MB, wrapper footprint: %d MB", limit >> 20,
+					wrapperFootprint >> 20);
+				break;
+			case "absolute":
+				if (options.getHeapMax() == null)
+				{
+					Globals.getLogger().fatal("--heap-policy absolute needs --heap-max");
+					System.exit(-1);
+				}
+				maxHeap = parseSizeOption("--heap-max", options.getHeapMax());
+				break;
+			default:
+				Globals.getLogger().fatal("Unknown heap policy %s, expected inherit, percent, absolute or passthrough",
+					options.getHeapPolicy());
+				System.exit(-1);
+				return args;
+		}
+		if (maxHeap < MIN_HEAP)
+		{
+			Globals.getLogger().warn("Computed server heap of %d MB is too small, using %d MB", maxHeap >> 20,
+				MIN_HEAP >> 20);
+			maxHeap = MIN_HEAP;
+		}
+		// -Xmx is rounded down to whole megabytes so it reads well in the process list
+		args.add("-Xmx" + (maxHeap >> 20) + "m");
+		if (options.getHeapMin() != null)
+		{
+			args.add("-Xms" + (Math.min(parseSizeOption("--heap-min", options.getHeapMin()), maxHeap) >> 20) + "m");
+		}
+		final String gcFlag = getGcFlag(options.getGc(), jvmArguments);
+		if (gcFlag != null)
+		{
+			args.add(gcFlag);
+		}
+		return args;
+	}
+
+	private static String getGcFlag(final String gc, final List<String> jvmArguments)
+	{
+		for (final String arg : jvmArguments)
+		{
+			if (arg.startsWith("-XX:+Use") && arg.endsWith("GC"))
+			{
+				return null;
+			}
+		}
+		switch (gc.toLowerCase(Locale.ROOT))
+		{
+			case "none":
+				return null;
+			case "g1":
+				return "-XX:+UseG1GC";
+			case "parallel":
+				return "-XX:+UseParallelGC";
+			case "serial":
+				return "-XX:+UseSerialGC";
+			case "z":
+				return "-XX:+UseZGC";
+			case "shenandoah":
+				return "-XX:+UseShenandoahGC";
+			default:
+				Globals.getLogger().warn("Unknown GC %s, leaving the JVM default", gc);
+				return null;
+		}
+	}
+
+	private static long getWrapperFootprint()
+	{
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		return memory.getHeapMemoryUsage().getCommitted() + memory.getNonHeapMemoryUsage().getCommitted();
+	}
+
+	private static long getMemoryLimit()
+	{
+		final long cgroupLimit = Math.min(readLimit(new File("/sys/fs/cgroup/memory.max")),
+			readLimit(new File("/sys/fs/cgroup/memory/memory.limit_in_bytes")));
+		if (cgroupLimit < UNLIMITED)
+		{
+			return cgroupLimit;
+		}
+		try
+		{
+			return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getTotalPhysicalMemorySize();
+		}
+		catch (ClassCastException | LinkageError ex)
+		{
+			Globals.getLogger().warn("Couldn't find the memory limit, falling back to the wrapper's max heap");
+			return Runtime.getRuntime().maxMemory();
+		}
+	}
+
+	private static long readLimit(final File file)
+	{
+		try
+		{
+			if (!file.exists())
+			{
+				return Long.MAX_VALUE;
+			}
+			final String value = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+			return value.equals("max") ? Long.MAX_VALUE : Long.parseLong(value);
+		}
+		catch (IOException | NumberFormatException ex)
+		{
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Parses a JVM style size like 512m or 4G, a bare number is in bytes
+	 *
+	 * @return the size in bytes, or -1 if it isn't a whole positive number with an optional k, m, g or t suffix
+	 */
+	public static long parseSize(final String size)
+	{
+		final String value = size.trim().toLowerCase(Locale.ROOT);
+		if (value.isEmpty())
+		{
+			return -1;
+		}
+		final char unit = value.charAt(value.length() - 1);
+		final int shift;
+		switch (unit)
+		{
+			case 'k':
+				shift = 10;
+				break;
+			case 'm':
+				shift = 20;
+				break;
+			case 'g':
+				shift = 30;
+				break;
+			case 't':
+				shift = 40;
+				break;
+			default:
+				shift = 0;
+				break;
+		}
+		final String digits = shift == 0 ? value : value.substring(0, value.length() - 1);
+		if (digits.isEmpty() || digits.length() > 18 || !digits.chars().allMatch(c -> c >= '0' && c <= '9'))
+		{
+			return -1;
+		}
+		final long number = Long.parseLong(digits);
+		if (number <= 0 || number > (Long.MAX_VALUE >> shift))
+		{
+			return -1;
+		}
+		return number << shift;
+	}
+
+	private static long parseSizeOption(final String option, final String value)
+	{
+		final long size = parseSize(value);
+		if (size < 0)
+		{
+			Globals.getLogger().fatal("Invalid %s value \"%s\", expected a whole size like 512M or 4G", option, value);
+			System.exit(-1);
+		}
+		return size;
+	}
+}
@@ -16,13 +16,27 @@
  */
 package com.thatgamerblue.spigotwrapper.util;
 
+import lombok.Data;
 import lombok.SneakyThrows;
 import org.fusesource.jansi.Ansi;
 import sun.reflect.Reflection;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Log calls only capture the caller and the arguments, formatting and printing happens on a background thread fed
+ * through a bounded queue. DEBUG messages are dropped (and counted) when the queue is full, everything else waits
+ * for room. Anything printing straight to System.out has to call {@link #flush()} first to keep the order.
+ */
 public class Logger
 {
 	public static final int LEVEL_DEBUG = 3;
@@ -30,6 +44,29 @@ public class Logger
 	public static final int LEVEL_WARN = 1;
 	public static final int LEVEL_FATAL = 0;
 
+	private static final int QUEUE_CAPACITY = 8192;
+	private static final long FLUSH_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+	/**
+	 * Frames between Reflection.getCallerClass and the class that called debug/info/warn/fatal
+	 */
+	private static final int CALLER_DEPTH = 3;
+	private static final boolean CALLER_CLASS_AVAILABLE = isCallerClassAvailable();
+
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Object writtenLock = new Object();
+	private long written = 0;
+	private final Thread writerThread;
+
+	public Logger()
+	{
+		this.writerThread = new Thread(this::writeLoop, "logger-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "logger-flush"));
+	}
+
 	public static String getLogLevelString(final int level)
 	{
 		switch (level)
@@ -49,6 +86,7 @@ public class Logger
 
 	public void printLicense()
 	{
+		this.flush();
 		System.out.println("\tSpigotWrapper  Copyright (C) 2020  ThatGamerBlue");
 		System.out.println("\tThis program comes with ABSOLUTELY NO WARRANTY,");
 		System.out.println("\tThis is free software, and you are welcome to redistribute it");
@@ -61,7 +99,7 @@ public class Logger
 	{
 		if (Globals.getOptions().getLoggingLevel() >= LEVEL_DEBUG)
 		{
-			System.out.println("[DEBUG " + this.getCallingClass() + "] " + String.format(fmt, objs));
+			this.log(LEVEL_DEBUG, false, this.getCallingClass(), fmt, objs);
 		}
 	}
 
@@ -69,7 +107,7 @@ public class Logger
 	{
 		if (Globals.getOptions().getLoggingLevel() >= LEVEL_INFO)
 		{
-			System.out.println("[INFO " + this.getCallingClass() + "] " + String.format(fmt, objs));
+			this.log(LEVEL_INFO, false, this.getCallingClass(), fmt, objs);
 		}
 	}
 
@@ -77,9 +115,7 @@ public class Logger
 	{
 		if (Globals.getOptions().getLoggingLevel() >= LEVEL_WARN)
 		{
-			System.out.println(
-				Ansi.ansi().fgBrightYellow().a("[WARN " + this.getCallingClass() + "] " + String.format(fmt, objs))
-					.reset());
+			this.log(LEVEL_WARN, true, this.getCallingClass(), fmt, objs);
 		}
 	}
 
@@ -87,9 +123,7 @@ public class Logger
 	{
 		if (Globals.getOptions().getLoggingLevel() >= LEVEL_FATAL)
 		{
-			System.out.println(
-				Ansi.ansi().fgBrightRed().a("[FATAL " + this.getCallingClass() + "] " + String.format(fmt, objs))
-					.reset());
+			this.log(LEVEL_FATAL, true, this.getCallingClass(), fmt, objs);
 		}
 	}
 
@@ -97,40 +131,192 @@ public class Logger
 	{
 		if (Globals.getOptions().getLoggingLevel() >= LEVEL_FATAL)
 		{
-			System.out.println("[FATAL " + this.getCallingClass() + "] " + String.format(fmt, objs));
+			this.log(LEVEL_FATAL, false, this.getCallingClass(), fmt, objs);
 		}
 	}
 
-	private String getCallingClass()
+	/**
+	 * Blocks until everything logged so far has been printed
+	 */
+	public void flush()
 	{
-		int i = 0;
-		try
+		final long target = this.enqueued.get();
+		final long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+		synchronized (this.writtenLock)
 		{
-			while (Reflection.getCallerClass(++i) == Logger.class)
+			while (this.written < target && this.writerThread.isAlive())
 			{
-				if (i == 10)
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
 				{
-					return "FAILED TO GET CALLING CLASS";
+					return;
 				}
-				if (i == 11)
+				try
 				{
-					throw new ClassNotFoundException("this is here to trick the compiler");
+					this.writtenLock.wait(remaining);
 				}
-				if (i == 12)
+				catch (InterruptedException ex)
 				{
-					throw new NoSuchMethodException("this is here to trick the compiler");
+					Thread.currentThread().interrupt();
+					return;
 				}
 			}
-			return Reflection.getCallerClass(i).getName();
 		}
-		catch (ClassNotFoundException | NoSuchMethodException ex3)
+	}
+
+	private void log(final int level, final boolean colored, final String caller, final String fmt,
+		final Object[] objs)
+	{
+		final Record record = new Record(level, colored, caller, fmt, snapshot(objs));
+		if (level == LEVEL_DEBUG)
+		{
+			if (!this.queue.offer(record))
+			{
+				this.dropped.incrementAndGet();
+				return;
+			}
+		}
+		else
+		{
+			try
+			{
+				// a writer that died would never make room, print straight away then
+				while (!this.queue.offer(record, 100, TimeUnit.MILLISECONDS))
+				{
+					if (!this.writerThread.isAlive())
+					{
+						System.out.println(this.format(record));
+						return;
+					}
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				System.out.println(this.format(record));
+				return;
+			}
+		}
+		this.enqueued.incrementAndGet();
+	}
+
+	private void writeLoop()
+	{
+		final List<Record> batch = new ArrayList<>();
+		while (true)
+		{
+			try
+			{
+				batch.add(this.queue.take());
+			}
+			catch (InterruptedException ex)
+			{
+				return;
+			}
+			this.queue.drainTo(batch);
+			for (final Record record : batch)
+			{
+				System.out.println(this.format(record));
+			}
+			final long droppedCount = this.dropped.getAndSet(0);
+			if (droppedCount > 0)
+			{
+				System.out.println(Ansi.ansi().fgBrightYellow()
+					.a("[WARN " + Logger.class.getName() + "] Dropped " + droppedCount + " debug messages").reset());
+			}
+			synchronized (this.writtenLock)
+			{
+				this.written += batch.size();
+				this.writtenLock.notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Arguments are formatted later on the writer thread, so anything that could still change or whose toString could
+	 * fail is turned into a string here, on the thread that logged it
+	 */
+	private static Object[] snapshot(final Object[] objs)
+	{
+		if (objs == null)
+		{
+			return null;
+		}
+		final Object[] copy = new Object[objs.length];
+		for (int i = 0; i < objs.length; i++)
+		{
+			final Object obj = objs[i];
+			if (obj == null || obj instanceof String || obj instanceof Number || obj instanceof Boolean
+				|| obj instanceof Character)
+			{
+				copy[i] = obj;
+				continue;
+			}
+			try
+			{
+				copy[i] = String.valueOf(obj);
+			}
+			catch (Throwable t)
+			{
+				copy[i] = "<" + obj.getClass().getName() + ".toString() threw " + t + ">";
+			}
+		}
+		return copy;
+	}
+
+	private String format(final Record record)
+	{
+		String message;
+		try
+		{
+			message = String.format(record.getFmt(), record.getObjs());
+		}
+		catch (IllegalFormatException ex)
+		{
+			message = record.getFmt() + " " + Arrays.toString(record.getObjs());
+		}
+		catch (Throwable t)
 		{
-			return "FAILED TO GET CALLING CLASS";
+			// nothing a single message does may take the writer thread down with it
+			message = record.getFmt() + " <failed to format: " + t + ">";
+		}
+		final String line = "[" + getLogLevelString(record.getLevel()) + " " + record.getCaller() + "] " + message;
+		if (!record.isColored())
+		{
+			return line;
+		}
+		final Ansi ansi = record.getLevel() == LEVEL_WARN ? Ansi.ansi().fgBrightYellow() : Ansi.ansi().fgBrightRed();
+		return ansi.a(line).reset().toString();
+	}
+
+	private String getCallingClass()
+	{
+		if (CALLER_CLASS_AVAILABLE)
+		{
+			final Class<?> caller = Reflection.getCallerClass(CALLER_DEPTH);
+			return caller == null ? "FAILED TO GET CALLING CLASS" : caller.getName();
+		}
+		// newer JDKs don't have sun.reflect.Reflection, walking a stack trace is slower but always works
+		final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+		return stackTrace.length > CALLER_DEPTH - 1 ? stackTrace[CALLER_DEPTH - 1].getClassName()
+			: "FAILED TO GET CALLING CLASS";
+	}
+
+	private static boolean isCallerClassAvailable()
+	{
+		try
+		{
+			return Reflection.getCallerClass(1) == Logger.class;
+		}
+		catch (Throwable t)
+		{
+			return false;
 		}
 	}
 
 	@SneakyThrows
-	public static String exceptionToString(final Exception ex)
+	public static String exceptionToString(final Throwable ex)
 	{
 		final StringWriter sw = new StringWriter();
 		final PrintWriter pw = new PrintWriter(sw);
@@ -141,4 +327,14 @@ public class Logger
 		return sStackTrace;
 	}
 
+	@Data
+	private static class Record
+	{
+		private final int level;
+		private final boolean colored;
+		private final String caller;
+		private final String fmt;
+		private final Object[] objs;
+	}
+
 }
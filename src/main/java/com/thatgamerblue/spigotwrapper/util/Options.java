@@ -41,6 +41,46 @@ public class Options
 	private List<String> jvmArguments = new ArrayList<>();
 	@Parameter(names = { "-a", "--arg" }, description = "Arguments to pass to spigot. Usage: -a arg1 -a arg2 -a arg3 (default = nothing)")
 	private List<String> spigotArguments = new ArrayList<>();
+	@Parameter(names = { "-t", "--threads" }, description = "Number of worker threads used to augment classes (default = number of available processors)")
+	private int threads = Runtime.getRuntime().availableProcessors();
+	@Parameter(names = { "--agent" }, description = "Augment classes as the server loads them through a java agent instead of rewriting the jar up front (default = false)")
+	private boolean agent = false;
+	@Parameter(names = { "--in-process" }, description = "Run the server inside the wrapper's JVM instead of starting a second java process. JVM arguments are ignored (default = false)")
+	private boolean inProcess = false;
+	@Parameter(names = { "--cds" }, description = "Create and use a class data sharing archive of the augmented jar to speed up server startup, needs Java 13+ (default = false)")
+	private boolean classDataSharing = false;
+	@Parameter(names = { "--shared-cache" }, description = "Directory shared between servers to build each augmented jar only once and hardlink it into every server (default = unset)")
+	private String sharedCache = null;
+	@Parameter(names = { "--capture-console" }, description = "Pipe the server's output through the wrapper and write it to rotated, compressed JSON log files (default = false)")
+	private boolean captureConsole = false;
+	@Parameter(names = { "--console-log-dir" }, description = "Directory for --capture-console logs (default = logs/console)")
+	private String consoleLogDirectory = "logs/console";
+	@Parameter(names = { "--console-log-size" }, description = "Size in MB at which a console log is rotated and compressed (default = 32)")
+	private int consoleLogSize = 32;
+	@Parameter(names = { "--console-log-keep" }, description = "Number of compressed console logs to keep (default = 10)")
+	private int consoleLogKeep = 10;
+	@Parameter(names = { "--supervise" }, description = "Keep the wrapper running and restart the server when it crashes (default = false)")
+	private boolean supervise = false;
+	@Parameter(names = { "--restart-delay" }, description = "Milliseconds before the first restart, doubled after each crash in a row (default = 1000)")
+	private long restartDelay = 1000L;
+	@Parameter(names = { "--restart-max-delay" }, description = "Longest wait in milliseconds between restarts (default = 60000)")
+	private long restartMaxDelay = 60000L;
+	@Parameter(names = { "--crash-loop-count" }, description = "Crashes within --crash-loop-window after which the server is no longer restarted (default = 5)")
+	private int crashLoopCount = 5;
+	@Parameter(names = { "--crash-loop-window" }, description = "Seconds over which crashes are counted for --crash-loop-count (default = 300)")
+	private long crashLoopWindow = 300L;
+	@Parameter(names = { "--heap-policy" }, description = "How the server's heap is sized: inherit (this JVM's max heap minus the wrapper), percent (of the container or physical memory, minus the wrapper), absolute (--heap-max) or passthrough (only the JVM arguments) (default = inherit)")
+	private String heapPolicy = "inherit";
+	@Parameter(names = { "--heap-percent" }, description = "Percentage of the memory limit used by --heap-policy percent (default = 80)")
+	private int heapPercent = 80;
+	@Parameter(names = { "--heap-max" }, description = "Max heap used by --heap-policy absolute, e.g. 4G (default = unset)")
+	private String heapMax = null;
+	@Parameter(names = { "--heap-min" }, description = "Initial heap of the server, e.g. 1G. Left to the JVM when unset (default = unset)")
+	private String heapMin = null;
+	@Parameter(names = { "--gc" }, description = "Garbage collector for the server: none (the JVM's default), g1, parallel, serial, z or shenandoah. Ignored if the JVM arguments already pick one (default = none)")
+	private String gc = "none";
+	@Parameter(names = { "--entry-store" }, description = "Where augmented classes wait to be written into the jar: heap, offheap (direct memory) or file (a temporary file in the cache directory). The rebuild logs how much it held (default = heap)")
+	private String entryStore = "heap";
 
 	public boolean getHelp() {
 		return this.help;
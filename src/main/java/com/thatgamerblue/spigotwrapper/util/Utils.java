@@ -17,6 +17,7 @@
 
 package com.thatgamerblue.spigotwrapper.util;
 
+import com.thatgamerblue.spigotwrapper.instrumentation.ZipArchive;
 import com.thatgamerblue.spigotwrapper.plugins.PluginManager;
 import lombok.Getter;
 
@@ -24,19 +25,22 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Enumeration;
+import java.util.List;
 import java.util.TreeMap;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Utils
 {
 
+	@Getter
 	private static final Comparator<String> directoriesFirst = ((a, b) -> {
 		if (a.endsWith("/") && !b.endsWith("/")) {
 			return -1;
@@ -49,25 +53,23 @@ public class Utils
 		}
 	});
 
-	@Getter
-	private static MessageDigest sha256Digest;
+	private static final ThreadLocal<ByteBuffer> hashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1 << 16));
+
+	private static final ThreadLocal<MessageDigest> sha256Digest = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	});
 
 	public static TreeMap<String, byte[]> readAllEntries(final File zipFile) {
 		final TreeMap<String, byte[]> jarEntries = new TreeMap<>(Utils.directoriesFirst);
-		try {
-			final ZipFile zf = new ZipFile(zipFile);
-			final Enumeration<? extends ZipEntry> entries = zf.entries();
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			final byte[] tmp = new byte[1024];
-			while (entries.hasMoreElements()) {
-				final ZipEntry meta = entries.nextElement();
-				baos.reset();
-				final InputStream stream = zf.getInputStream(meta);
-				int readBytes;
-				while ((readBytes = stream.read(tmp)) > 0) {
-					baos.write(tmp, 0, readBytes);
-				}
-				jarEntries.put(meta.getName(), baos.toByteArray());
+		// entries are inflated straight into arrays of their declared size, and the archive is unmapped afterwards
+		try (final ZipArchive archive = new ZipArchive(zipFile)) {
+			for (final ZipArchive.Entry entry : archive.getEntries()) {
+				jarEntries.put(entry.getName(), archive.readBytes(entry));
 			}
 		}
 		catch (IOException ex) {
@@ -77,49 +79,92 @@ public class Utils
 		return jarEntries;
 	}
 
+	public static byte[] readFully(final InputStream stream, final long sizeHint) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int) sizeHint : 8192);
+		final byte[] tmp = new byte[8192];
+		int readBytes;
+		while ((readBytes = stream.read(tmp)) > 0) {
+			baos.write(tmp, 0, readBytes);
+		}
+		return baos.toByteArray();
+	}
+
+	public static void copy(final InputStream in, final OutputStream out) throws IOException {
+		final byte[] tmp = new byte[8192];
+		int readBytes;
+		while ((readBytes = in.read(tmp)) > 0) {
+			out.write(tmp, 0, readBytes);
+		}
+	}
+
 	public static String hashPluginsAndServer() throws IOException {
-		final String calculatedHash = sha256(PluginManager.PLUGIN_DIRECTORY);
-		return sha256((calculatedHash + sha256(new File(Globals.getOptions().getSpigotPath()))).getBytes());
+		final File[] pluginFiles = PluginManager.PLUGIN_DIRECTORY.listFiles(File::isFile);
+		Arrays.sort(pluginFiles);
+		final List<File> files = new ArrayList<>(Arrays.asList(pluginFiles));
+		// shared libraries change what plugins do as much as the plugins themselves
+		final File[] libraryFiles = PluginManager.LIBRARY_DIRECTORY.listFiles(File::isFile);
+		if (libraryFiles != null) {
+			Arrays.sort(libraryFiles);
+			files.addAll(Arrays.asList(libraryFiles));
+		}
+		files.add(new File(Globals.getOptions().getSpigotPath()));
+		final List<String> hashes = Globals.getFingerprintStore().hashAll(files);
+		Globals.getFingerprintStore().save();
+		// same chaining as sha256(File) on the plugin directory
+		String calculatedHash = "";
+		for (int i = 0; i < files.size() - 1; i++) {
+			calculatedHash = sha256((calculatedHash + hashes.get(i)).getBytes());
+		}
+		return sha256((calculatedHash + hashes.get(files.size() - 1)).getBytes());
 	}
 
 	public static String sha256(final File fileIn) throws IOException {
-		String hash = "";
 		if (fileIn.isDirectory()) {
+			String hash = "";
 			final File[] files = fileIn.listFiles();
 			Arrays.sort(files);
 			for (final File f2 : files) {
-				hash = sha256((hash + sha256(Files.readAllBytes(f2.toPath()))).getBytes());
+				hash = sha256((hash + sha256(f2)).getBytes());
 			}
+			return hash;
 		}
-		else {
-			hash = sha256(Files.readAllBytes(fileIn.toPath()));
+		final MessageDigest digest = getSha256Digest();
+		final ByteBuffer buffer = Utils.hashBuffer.get();
+		buffer.clear();
+		try (final FileChannel channel = FileChannel.open(fileIn.toPath(), StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
 		}
-		return hash;
+		return bytesToHex(digest.digest());
 	}
 
 	public static String sha256(final byte[] bytes) {
-		return bytesToHex(Utils.sha256Digest.digest(bytes));
+		return bytesToHex(getSha256Digest().digest(bytes));
+	}
+
+	public static MessageDigest getSha256Digest() {
+		final MessageDigest digest = Utils.sha256Digest.get();
+		if (digest != null) {
+			digest.reset();
+		}
+		return digest;
 	}
 
 	private static String bytesToHex(final byte[] hash) {
-		final StringBuilder hexString = new StringBuilder();
+		final char[] hexChars = new char[hash.length * 2];
 		for (int i = 0; i < hash.length; ++i) {
-			final String hex = Integer.toHexString(0xFF & hash[i]);
-			if (hex.length() == 1) {
-				hexString.append('0');
-			}
-			hexString.append(hex);
+			hexChars[i * 2] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+			hexChars[i * 2 + 1] = Character.forDigit(hash[i] & 0xF, 16);
 		}
-		return hexString.toString().toLowerCase();
+		return new String(hexChars);
 	}
 
 	static {
-		try {
-			Utils.sha256Digest = MessageDigest.getInstance("SHA-256");
-		}
-		catch (NoSuchAlgorithmException e) {
+		if (Utils.sha256Digest.get() == null) {
 			Globals.getLogger().fatalUnformatted("Failed to create sha-256 instance, disabling caching");
-			Utils.sha256Digest = null;
 		}
 	}
 